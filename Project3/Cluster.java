@@ -0,0 +1,271 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Static membership of a Coordinator cluster, read from the cluster.nodes and
+ * cluster.self options. Groups are partitioned over the nodes by hash: a group's
+ * owner is the only node that assigns its sequences, and the other nodes forward
+ * multicasts for it there. Every node sends the log records it originates to all
+ * of its peers, so each node holds the whole membership and message log and a
+ * participant can reconnect through any of them.
+ *
+ * Nothing here writes to a peer on the caller's thread. Forwards and records go into
+ * a bounded outbox per peer that its own writer thread drains in order; a peer whose
+ * outbox fills, or whose write takes longer than cluster.timeout.ms, is disconnected
+ * and what was queued for it is dropped, so a hung peer only loses its own traffic.
+ * A link that may have lost records, and every link when the node starts, is behind:
+ * once the peer answers again it is sent a resync, this node's own state as records,
+ * before anything else, so lost records are made good rather than skipped.
+ */
+public class Cluster implements Closeable {
+    private final List<String> nodes;                   // "host:port" of every node, same order on each
+    private final String self;
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+    private final long timeoutMs;                       // how long a forward may wait, and a write may take
+    private final Supplier<List<WriteAheadLog.Record>> resync;
+    private final ScheduledExecutorService watchdog =
+            Executors.newSingleThreadScheduledExecutor(FanOutEngine.daemonThreads("cluster-watchdog"));
+    private volatile boolean closed;
+
+    // One command waiting in a peer's outbox; ack is null for a replicated record
+    private static final class Outgoing {
+        final byte opcode;
+        final String id;
+        final byte[] payload;
+        final CompletableFuture<Long> ack;
+
+        Outgoing(byte opcode, String id, byte[] payload, CompletableFuture<Long> ack) {
+            this.opcode = opcode;
+            this.id = id;
+            this.payload = payload;
+            this.ack = ack;
+        }
+    }
+
+    // The link to one peer: a bounded outbox and the thread that writes it out
+    private final class Peer {
+        final String node;
+        final CoordinatorClient client;
+        final BlockingQueue<Outgoing> outbox;
+        final Thread writer;
+        final AtomicBoolean unreachable = new AtomicBoolean();
+        final AtomicBoolean behind = new AtomicBoolean(true);       // may have missed records; resync first
+
+        Peer(String node, CoordinatorClient client, int outboxSize) {
+            this.node = node;
+            this.client = client;
+            this.outbox = new ArrayBlockingQueue<>(outboxSize);
+            client.startHeartbeats();
+            this.writer = new Thread(this::drain, "cluster-peer-" + node);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        void offer(Outgoing o) {
+            if (!outbox.offer(o)) {
+                drop("outbox full");
+                fail(o, new IOException("outbox to " + node + " is full"));
+            }
+        }
+
+        private void drain() {
+            while (!closed) {
+                Outgoing o;
+                try {
+                    o = outbox.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (behind.get() && !resync() && o.ack == null) {
+                    continue;                                       // the resync once it answers covers it
+                }
+                write(o).whenComplete((sequence, error) -> {
+                    if (error != null) {
+                        behind.set(true);                           // records in flight may be lost
+                        report(error);
+                        fail(o, error);
+                    } else {
+                        if (unreachable.compareAndSet(true, false)) {
+                            System.out.println("Cluster: sending to " + node + " again");
+                        }
+                        if (o.ack != null) {
+                            o.ack.complete(sequence);
+                        }
+                    }
+                });
+            }
+        }
+
+        // Bounded by the watchdog: a write still stuck after the timeout drops the link
+        private CompletableFuture<Long> write(Outgoing o) {
+            ScheduledFuture<?> timer = watchdog.schedule(() -> drop("write took over " + timeoutMs + " ms"),
+                    timeoutMs, TimeUnit.MILLISECONDS);
+            try {
+                return client.send(o.opcode, o.id, o.payload);
+            } finally {
+                timer.cancel(false);
+            }
+        }
+
+        // Sends this node's state once the peer answers a ping; false if it does not
+        private boolean resync() {
+            try {
+                write(new Outgoing(WireProtocol.PING, self, new byte[0], null)).get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException | TimeoutException e) {
+                return false;
+            }
+            behind.set(false);                                      // a failure from here on sets it again
+            List<WriteAheadLog.Record> records = resync.get();
+            CompletableFuture<Long> last = CompletableFuture.completedFuture(0L);
+            for (WriteAheadLog.Record record : records) {
+                try {
+                    last = write(new Outgoing(WireProtocol.REPLICATE, self, WriteAheadLog.encode(record), null));
+                } catch (IOException e) {
+                    System.out.println("Error encoding replicated record: " + e.getMessage());
+                }
+            }
+            last.whenComplete((sequence, error) -> {
+                if (error != null) {
+                    behind.set(true);
+                    report(error);
+                } else {
+                    System.out.println("Cluster: resynced " + node + " with " + records.size() + " records");
+                }
+            });
+            return true;
+        }
+
+        // Disconnects the peer and discards its backlog; forwards in it fail at once
+        private void drop(String reason) {
+            behind.set(true);
+            List<Outgoing> discarded = new ArrayList<>();
+            outbox.drainTo(discarded);
+            report(new IOException(reason + ", dropped " + discarded.size() + " queued commands"));
+            client.abort();
+            IOException cause = new IOException("link to " + node + " dropped: " + reason);
+            for (Outgoing o : discarded) {
+                fail(o, cause);
+            }
+        }
+
+        private void report(Throwable error) {
+            if (unreachable.compareAndSet(false, true)) {             // report once per outage
+                System.out.println("Cluster: cannot send to " + node + ": " + error.getMessage());
+            }
+        }
+
+        private void fail(Outgoing o, Throwable error) {
+            if (o.ack != null) {
+                o.ack.completeExceptionally(error);
+            }
+        }
+    }
+
+    /**
+     * {@code resync} yields the records that rebuild this node's part of the shared state
+     * on a peer: the participants registered here and the retained messages of the groups
+     * it owns. Applying them again over a peer that already has them changes nothing.
+     */
+    public Cluster(List<String> nodes, String self, long heartbeatMs, long timeoutMs, int outboxSize,
+                   Supplier<List<WriteAheadLog.Record>> resync) {
+        if (!nodes.contains(self)) {
+            throw new IllegalArgumentException("cluster.self " + self + " is not one of cluster.nodes");
+        }
+        this.nodes = nodes;
+        this.self = self;
+        this.timeoutMs = timeoutMs;
+        this.resync = resync;
+        for (String node : nodes) {
+            if (!node.equals(self)) {
+                peers.put(node, new Peer(node,
+                        new CoordinatorClient(Collections.singletonList(node), self, heartbeatMs, timeoutMs),
+                        outboxSize));
+            }
+        }
+    }
+
+    /** Reads the cluster options; returns null when the Coordinator runs on its own. */
+    public static Cluster fromOptions(Properties options, Supplier<List<WriteAheadLog.Record>> resync) {
+        String nodes = options.getProperty("cluster.nodes");
+        if (nodes == null) {
+            return null;
+        }
+        List<String> list = new ArrayList<>();
+        for (String node : nodes.split(",")) {
+            list.add(node.trim());
+        }
+        String self = options.getProperty("cluster.self", "").trim();
+        return new Cluster(list, self, Long.parseLong(options.getProperty("cluster.heartbeat.ms", "2000").trim()),
+                Long.parseLong(options.getProperty("cluster.timeout.ms", "5000").trim()),
+                Integer.parseInt(options.getProperty("cluster.outbox.size", "10000").trim()), resync);
+    }
+
+    public String self() {
+        return self;
+    }
+
+    public String owner(String group) {
+        return nodes.get(Math.floorMod(group.hashCode(), nodes.size()));
+    }
+
+    public boolean owns(String group) {
+        return owner(group).equals(self);
+    }
+
+    /**
+     * Queues a command for the group's owner without waiting; the future yields the
+     * sequence it assigns, or fails with an IOException if the owner rejects the
+     * command, its link is dropped, or it does not answer within the timeout.
+     */
+    public CompletableFuture<Long> forward(String group, byte opcode, String senderId, byte[] payload) {
+        String owner = owner(group);
+        CompletableFuture<Long> ack = new CompletableFuture<>();
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        ack.orTimeout(timeoutMs, TimeUnit.MILLISECONDS).whenComplete((sequence, error) -> {
+            if (error == null) {
+                result.complete(sequence);
+            } else if (error instanceof TimeoutException) {
+                result.completeExceptionally(new IOException("no answer from " + owner + " in "
+                        + timeoutMs + " ms"));
+            } else {
+                result.completeExceptionally(error);
+            }
+        });
+        peers.get(owner).offer(new Outgoing(opcode, senderId, payload, ack));
+        return result;
+    }
+
+    /**
+     * Queues a record for every peer without waiting. Each peer link is one ordered
+     * connection, so peers apply records in the order they were queued.
+     */
+    public void replicate(WriteAheadLog.Record record) {
+        byte[] payload;
+        try {
+            payload = WriteAheadLog.encode(record);
+        } catch (IOException e) {
+            System.out.println("Error encoding replicated record: " + e.getMessage());
+            return;
+        }
+        for (Peer peer : peers.values()) {
+            peer.offer(new Outgoing(WireProtocol.REPLICATE, self, payload, null));
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        watchdog.shutdownNow();
+        for (Peer peer : peers.values()) {
+            peer.writer.interrupt();
+            peer.client.close();
+        }
+    }
+}
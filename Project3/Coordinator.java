@@ -1,27 +1,178 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.StreamHandler;
 
 public class Coordinator {
+    private static final String ACK = "{\"status\": \"ack\"}";
+    // Per-command and per-delivery lines are FINE; membership changes and errors still print
+    private static final Logger LOG = Logger.getLogger(Coordinator.class.getName());
+
     private final int port;
     private final int persistenceTime; // Temporally-bound persistence threshold
-    private final Map<String, ParticipantInfo> participants = new ConcurrentHashMap<>();
-    private final List<Message> messages = Collections.synchronizedList(new ArrayList<>());
+    private final MembershipRegistry participants = new MembershipRegistry();
+    private final ConcurrentHashMap<String, Group> groups = new ConcurrentHashMap<>();
+    private final Group everyone = group(Group.DEFAULT);
+    private final Properties options;
+    private final int connectTimeoutMs;
+    private final FanOutEngine fanOut;
+    private final OutboundLimit outbound;
+    private final int compressAtBytes;                // delivery frames this large are deflated; 0 never
+    private final long leaseMs;                       // silent this long and a participant expires; 0 never
+    private final ScheduledExecutorService maintenance =
+            Executors.newSingleThreadScheduledExecutor(FanOutEngine.daemonThreads("retention"));
+    private WriteAheadLog wal;                        // null unless wal.dir is configured
+    private final Cluster cluster;                    // null unless cluster.nodes is configured
+    private final Queue<WriteAheadLog.Record> unreplicated = new ConcurrentLinkedQueue<>();   // in log order
+    private final Set<String> replicaGaps = ConcurrentHashMap.newKeySet();   // groups waiting for a resync
+    private final CoordinatorMetrics metrics = new CoordinatorMetrics();
+    private volatile NioFrontDoor frontDoor;          // set when frontdoor=nio
+    private final AtomicInteger openClients = new AtomicInteger();    // blocking front door only
+    private final LongAdder acceptedClients = new LongAdder();
+
+    // A command that could not be carried out; answered with a NACK, or an error line on the text protocol
+    private static final class Rejected extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        Rejected(String reason) {
+            super(reason, null, false, false);
+        }
+    }
 
     public Coordinator(int port, int persistenceTime) {
+        this(port, persistenceTime, new Properties());
+    }
+
+    public Coordinator(int port, int persistenceTime, Properties options) {
         this.port = port;
         this.persistenceTime = persistenceTime;
+        this.options = options;
+        this.connectTimeoutMs = intOption("connect.timeout.ms", 2000);
+        this.compressAtBytes = intOption("delivery.compress.bytes", 0);
+        this.leaseMs = intOption("lease.ms", 0);
+        this.fanOut = new FanOutEngine(
+                intOption("fanout.threads", Runtime.getRuntime().availableProcessors() * 2),
+                intOption("write.timeout.ms", 5000),
+                intOption("fanout.batch.size", 256),
+                intOption("fanout.batches.per.turn", 8),
+                this::pendingMessages,
+                this::sendBatch);
+        this.cluster = Cluster.fromOptions(options, this::resyncRecords);
+        this.outbound = OutboundLimit.fromOptions(options, this::demote);
+        if (outbound.blocksSenders() && "nio".equals(options.getProperty("frontdoor"))) {
+            // A blocked sender would hold a selector loop and every connection on it
+            throw new IllegalArgumentException("outbound.policy=block cannot be used with frontdoor=nio;"
+                    + " use demote or drop-oldest");
+        }
+        int sweepMs = intOption("retention.sweep.ms", 1000);
+        maintenance.scheduleWithFixedDelay(this::evictExpiredMessages, sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+        if (leaseMs > 0) {
+            long checkMs = Math.max(100, leaseMs / 4);
+            maintenance.scheduleWithFixedDelay(this::expireLeases, checkMs, checkMs, TimeUnit.MILLISECONDS);
+        }
+        int reportMs = intOption("outbound.report.ms", 0);
+        if (reportMs > 0) {
+            maintenance.scheduleWithFixedDelay(() -> System.out.println(outbound.report(groups.values())),
+                    reportMs, reportMs, TimeUnit.MILLISECONDS);
+        }
+        registerGauges();
+    }
+
+    private void registerGauges() {
+        metrics.gauge("participants", participants::size);
+        metrics.gauge("participantsOnline", () -> participants.online().length);
+        metrics.gauge("groups", groups::size);
+        metrics.gauge("retainedMessages", () -> {
+            long n = 0;
+            for (Group g : groups.values()) {
+                n += g.getMessages().size();
+            }
+            return n;
+        });
+        metrics.gauge("queuedBytes", () -> {
+            long n = 0;
+            for (Group g : groups.values()) {
+                for (Subscription sub : g.online()) {
+                    n += OutboundLimit.queuedBytes(sub);
+                }
+            }
+            return n;
+        });
+        metrics.gauge("outboundDropped", outbound::getDropped);
+        metrics.gauge("outboundDemoted", outbound::getDemoted);
+        metrics.gauge("outboundBlockedMs", outbound::getBlockedMs);
+        metrics.gauge("connectionsOpen", () -> frontDoor != null ? frontDoor.openConnections() : openClients.get());
+        metrics.gauge("connectionsAccepted",
+                () -> frontDoor != null ? frontDoor.acceptedConnections() : acceptedClients.sum());
+    }
+
+    public CoordinatorMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Identifies this node in REGISTER and RECONNECT records; empty outside a cluster
+    private String nodeId() {
+        return cluster == null ? "" : cluster.self();
+    }
+
+    private boolean isLocal(String home) {
+        return cluster == null || home.isEmpty() || home.equals(cluster.self());
+    }
+
+    // Groups are created on first use and then kept; see Group
+    private Group group(String name) {
+        return groups.computeIfAbsent(name, Group::new);
+    }
+
+    private int intOption(String key, int defaultValue) {
+        String value = options.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
     }
 
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        // Bind before touching the log, so a second Coordinator started with this config fails here
+        ServerSocket serverSocket = null;
+        try {
+            if ("nio".equals(options.getProperty("frontdoor"))) {
+                frontDoor = new NioFrontDoor(port, intOption("nio.threads", 2), this::handleLine, this::handleFrame);
+                frontDoor.bind();
+            } else {
+                serverSocket = new ServerSocket(port);
+            }
+        } catch (IOException e) {
+            System.out.println("Error starting Coordinator: " + e.getMessage());
+            return;
+        }
+        try {
+            openWriteAheadLog();
+        } catch (IOException e) {
+            System.out.println("Error recovering write-ahead log: " + e.getMessage());
+            closeQuietly(serverSocket);
+            return;
+        }
+        if (cluster != null) {
+            System.out.println("Coordinator is cluster node " + cluster.self());
+        }
+        metrics.register(port);
+        if (frontDoor != null) {
+            startNio();
+            return;
+        }
+        try (ServerSocket server = serverSocket) {
             //serverSocket.setReuseAddress(true);                         // allow fast restart
             //serverSocket.bind(new InetSocketAddress(port));             // explicit bind
             System.out.println("Coordinator started on port " + port);
             while (true) {
-                Socket clientSocket = serverSocket.accept();
+                Socket clientSocket = server.accept();
                 new Thread(() -> handleClient(clientSocket)).start();
             }
         } catch (IOException e) {
@@ -29,169 +180,980 @@ public class Coordinator {
         }
     }
 
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // Nothing useful to do if close fails
+        }
+    }
+
+    private void openWriteAheadLog() throws IOException {
+        String dir = options.getProperty("wal.dir");
+        if (dir == null) {
+            return;
+        }
+        wal = new WriteAheadLog(java.nio.file.Paths.get(dir),
+                intOption("wal.segment.mb", 64) * 1024L * 1024L,
+                options.getProperty("wal.fsync", "interval"));
+        recover();
+        int cursorMs = intOption("wal.cursor.ms", 1000);
+        if (cursorMs > 0) {
+            maintenance.scheduleWithFixedDelay(this::logAckedCursors, cursorMs, cursorMs, TimeUnit.MILLISECONDS);
+        }
+        if ("interval".equals(wal.getFsyncPolicy())) {
+            int intervalMs = intOption("wal.fsync.interval.ms", 100);
+            maintenance.scheduleWithFixedDelay(this::syncWriteAheadLog, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                wal.close();
+            } catch (IOException e) {
+                System.out.println("Error closing write-ahead log: " + e.getMessage());
+            }
+        }));
+    }
+
+    // Rebuild membership and the in-window messages, then rewrite the log as a compact snapshot
+    private void recover() throws IOException {
+        long horizon = retentionHorizon();
+        wal.replay(record -> {
+            apply(record);
+            if (record.type == WriteAheadLog.MSEND && record.timestamp < horizon) {
+                group(record.group).getMessages().evictOlderThan(horizon);   // keep memory to the window, not the history
+            }
+        });
+        int retained = 0;
+
+        List<WriteAheadLog.Record> snapshot = new ArrayList<>();
+        for (Group g : groups.values()) {
+            MessageStore store = g.getMessages();
+            store.evictOlderThan(horizon);
+            retained += store.size();
+            for (Message msg : store.since(0, horizon)) {
+                snapshot.add(new WriteAheadLog.Record(WriteAheadLog.MSEND, msg.getSenderId(), null, 0, msg.getMessage(),
+                        msg.getSequence(), msg.getTimestamp(), g.getName()));
+            }
+            snapshot.add(new WriteAheadLog.Record(WriteAheadLog.SEQUENCE, "", null, 0, null, store.lastSequence(), 0,
+                    g.getName()));
+        }
+        for (ParticipantInfo pi : participants.all()) {
+            snapshot.add(new WriteAheadLog.Record(WriteAheadLog.REGISTER, pi.getId(), pi.getIp(), pi.getPort(),
+                    pi.getHome(), pi.getSubscription(Group.DEFAULT).getAckedSequence(), 0));
+            for (Subscription sub : pi.getSubscriptions()) {
+                if (sub.getGroup() != everyone) {
+                    snapshot.add(new WriteAheadLog.Record(WriteAheadLog.JOIN, pi.getId(), null, 0, null,
+                            sub.getAckedSequence(), 0, sub.getGroup().getName()));
+                }
+            }
+            if (!pi.isOnline()) {
+                byte type = pi.getStatus() == ParticipantInfo.Status.EXPIRED
+                        ? WriteAheadLog.EXPIRE : WriteAheadLog.DISCONNECT;
+                snapshot.add(new WriteAheadLog.Record(type, pi.getId(), null, 0, null,
+                        pi.getSubscription(Group.DEFAULT).getAckedSequence(), 0));
+            }
+        }
+        wal.compact(snapshot);
+        System.out.println("Recovered " + participants.size() + " participants and " + retained
+                + " messages in " + groups.size() + " groups from " + options.getProperty("wal.dir"));
+
+        // Members online at the crash resume from their last logged acks; they drop what they already had
+        for (ParticipantInfo pi : participants.online()) {
+            for (Subscription sub : pi.getSubscriptions()) {
+                sub.loggedSequence = sub.getAckedSequence();
+                fanOut.wake(sub);
+            }
+        }
+    }
+
+    // Keeps each online member's logged cursor close to its acks, so recovery resends little
+    private void logAckedCursors() {
+        for (ParticipantInfo pi : participants.online()) {
+            for (Subscription sub : pi.getSubscriptions()) {
+                long acked = sub.getAckedSequence();
+                if (acked > sub.loggedSequence) {
+                    sub.loggedSequence = acked;
+                    appendEvent(WriteAheadLog.CURSOR, pi.getId(), null, 0, null, acked, 0, sub.getGroup().getName());
+                }
+            }
+        }
+    }
+
+    // Applies one log record, whether replayed from disk or replicated from a peer
+    private void apply(WriteAheadLog.Record record) {
+        switch (record.type) {
+            case WriteAheadLog.REGISTER:
+                boolean local = isLocal(record.text);       // text names the node it registered at
+                ParticipantInfo registered = new ParticipantInfo(record.id, record.ip, record.port,
+                        local ? ParticipantInfo.Status.ONLINE : ParticipantInfo.Status.REMOTE);
+                registered.setHome(record.text);
+                if (local) {
+                    registered.openChannel(connectTimeoutMs);
+                }
+                ParticipantInfo replaced = participants.put(registered);
+                if (replaced != null) {
+                    replaced.closeChannel();
+                    leaveAll(replaced);
+                }
+                everyone.join(registered).resetCursor(record.sequence);
+                break;
+            case WriteAheadLog.DEREGISTER:
+                ParticipantInfo removed = participants.remove(record.id);
+                if (removed != null) {
+                    removed.closeChannel();
+                    leaveAll(removed);
+                }
+                break;
+            case WriteAheadLog.DISCONNECT:
+            case WriteAheadLog.EXPIRE:
+                ParticipantInfo offline = participants.get(record.id);
+                if (offline != null) {
+                    participants.setStatus(offline, record.type == WriteAheadLog.EXPIRE
+                            ? ParticipantInfo.Status.EXPIRED : ParticipantInfo.Status.OFFLINE);
+                    offline.closeChannel();
+                    offline.getSubscription(Group.DEFAULT).resetCursor(record.sequence);
+                }
+                break;
+            case WriteAheadLog.RECONNECT:
+                ParticipantInfo online = participants.get(record.id);
+                if (online != null) {
+                    online.setEndpoint(record.ip, record.port);
+                    online.setHome(record.text);
+                    if (isLocal(record.text)) {
+                        online.openChannel(connectTimeoutMs);
+                        participants.setOnline(online);
+                    } else {
+                        online.closeChannel();                  // reconnected through another node
+                        participants.setStatus(online, ParticipantInfo.Status.REMOTE);
+                    }
+                }
+                break;
+            case WriteAheadLog.JOIN:
+                ParticipantInfo joined = participants.get(record.id);
+                if (joined != null) {
+                    group(record.group).join(joined).resetCursor(record.sequence);
+                }
+                break;
+            case WriteAheadLog.CURSOR:
+                ParticipantInfo acked = participants.get(record.id);
+                Subscription cursor = acked == null ? null : acked.getSubscription(record.group);
+                if (cursor != null) {                           // not if it left the group meanwhile
+                    cursor.resetCursor(record.sequence);
+                }
+                break;
+            case WriteAheadLog.LEAVE:
+                ParticipantInfo left = participants.get(record.id);
+                if (left != null) {
+                    group(record.group).leave(left);
+                }
+                break;
+            case WriteAheadLog.MSEND:
+                group(record.group).getMessages().restore(
+                        new Message(record.sequence, record.id, record.text, record.timestamp));
+                break;
+            case WriteAheadLog.SEQUENCE:
+                group(record.group).getMessages().advanceTo(record.sequence);
+                break;
+            default:
+                System.out.println("WAL: skipping unknown record type " + record.type);
+        }
+    }
+
+    private void logEvent(byte type, String id, String ip, int port, String text, long sequence, long timestamp) {
+        awaitDurable(appendEvent(type, id, ip, port, text, sequence, timestamp, Group.DEFAULT));
+    }
+
+    // Records an event that happened at this node: logged, then queued for the cluster peers
+    private long appendEvent(byte type, String id, String ip, int port, String text, long sequence, long timestamp,
+                             String group) {
+        long position = appendLocal(new WriteAheadLog.Record(type, id, ip, port, text, sequence, timestamp, group));
+        replicatePending();
+        return position;
+    }
+
+    // Logs a local event and lines it up for the peers in log order; the caller runs
+    // replicatePending() once it holds no lock, e.g. after leaving a store's
+    private long appendLocal(WriteAheadLog.Record record) {
+        if (cluster != null) {
+            unreplicated.add(record);
+        }
+        return appendToLog(record);
+    }
+
+    // Hands lined-up records to the peers' outboxes; one caller at a time, so they keep log order
+    private void replicatePending() {
+        if (cluster == null) {
+            return;
+        }
+        synchronized (unreplicated) {
+            WriteAheadLog.Record record;
+            while ((record = unreplicated.poll()) != null) {
+                cluster.replicate(record);
+            }
+        }
+    }
+
+    // Returns the log position covering the record, or -1 when there is no log or the write failed
+    private long appendToLog(WriteAheadLog.Record record) {
+        if (wal == null) {
+            return -1;
+        }
+        try {
+            return wal.append(record);
+        } catch (IOException e) {
+            System.out.println("Error writing write-ahead log: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    // A peer's event: applied and logged here but not sent on, since its origin reaches every peer
+    private void applyReplicated(WriteAheadLog.Record record) {
+        if (record.type == WriteAheadLog.MSEND) {
+            Group g = group(record.group);
+            synchronized (g.getMessages()) {
+                if (record.sequence <= g.getMessages().lastSequence()) {
+                    return;                                   // already here, e.g. resent by a resync
+                }
+                Message msg = new Message(record.sequence, record.id, record.text, record.timestamp);
+                if (!g.getMessages().appendReplica(msg)) {
+                    if (replicaGaps.add(record.group)) {
+                        System.out.println("Cluster: missed messages of group " + record.group + " before "
+                                + record.sequence + "; waiting for its owner to resync");
+                    }
+                    return;
+                }
+                if (replicaGaps.remove(record.group)) {
+                    System.out.println("Cluster: group " + record.group + " is in step with its owner again");
+                }
+                appendToLog(record);
+            }
+            wakeSubscribers(g);
+        } else {
+            apply(record);
+            appendToLog(record);
+        }
+    }
+
+    /**
+     * What a peer needs to catch up on this node's events: every participant registered
+     * here with its groups, cursors and status, and for each group this node owns a
+     * sequence mark just below its oldest retained message followed by the messages.
+     */
+    private List<WriteAheadLog.Record> resyncRecords() {
+        List<WriteAheadLog.Record> records = new ArrayList<>();
+        for (ParticipantInfo pi : participants.all()) {
+            if (!cluster.self().equals(pi.getHome())) {
+                continue;
+            }
+            records.add(new WriteAheadLog.Record(WriteAheadLog.REGISTER, pi.getId(), pi.getIp(), pi.getPort(),
+                    pi.getHome(), pi.getSubscription(Group.DEFAULT).getAckedSequence(), 0));
+            for (Subscription sub : pi.getSubscriptions()) {
+                if (sub.getGroup() != everyone) {
+                    records.add(new WriteAheadLog.Record(WriteAheadLog.JOIN, pi.getId(), null, 0, null,
+                            sub.getAckedSequence(), 0, sub.getGroup().getName()));
+                }
+            }
+            if (!pi.isOnline()) {
+                byte type = pi.getStatus() == ParticipantInfo.Status.EXPIRED
+                        ? WriteAheadLog.EXPIRE : WriteAheadLog.DISCONNECT;
+                records.add(new WriteAheadLog.Record(type, pi.getId(), null, 0, null,
+                        pi.getSubscription(Group.DEFAULT).getAckedSequence(), 0));
+            }
+        }
+        long horizon = retentionHorizon();
+        for (Group g : groups.values()) {
+            if (!cluster.owns(g.getName())) {
+                continue;
+            }
+            MessageStore store = g.getMessages();
+            List<Message> retained;
+            long before;
+            synchronized (store) {
+                retained = store.since(0, horizon);
+                before = retained.isEmpty() ? store.lastSequence() : retained.get(0).getSequence() - 1;
+            }
+            records.add(new WriteAheadLog.Record(WriteAheadLog.SEQUENCE, "", null, 0, null, before, 0,
+                    g.getName()));
+            for (Message msg : retained) {
+                records.add(new WriteAheadLog.Record(WriteAheadLog.MSEND, msg.getSenderId(), null, 0,
+                        msg.getMessage(), msg.getSequence(), msg.getTimestamp(), g.getName()));
+            }
+        }
+        return records;
+    }
+
+    private void awaitDurable(long position) {
+        if (position < 0 || !"always".equals(wal.getFsyncPolicy())) {
+            return;
+        }
+        try {
+            wal.sync(position);                           // group commit: one force covers concurrent appends
+        } catch (IOException e) {
+            System.out.println("Error syncing write-ahead log: " + e.getMessage());
+        }
+    }
+
+    private void syncWriteAheadLog() {
+        try {
+            wal.syncAll();
+        } catch (IOException e) {
+            System.out.println("Error syncing write-ahead log: " + e.getMessage());
+        }
+    }
+
+    private void startNio() {
+        try {
+            System.out.println("Coordinator started on port " + port + " (nio, " + intOption("nio.threads", 2)
+                    + " event loops)");
+            frontDoor.run();
+        } catch (IOException e) {
+            System.out.println("Error starting Coordinator: " + e.getMessage());
+        }
+    }
+
+    // Event-loop entry point: one command line in, one response line out (package-private for benchmarks)
+    CompletableFuture<String> handleLine(String data) {
+        LOG.fine(() -> "Received: " + data);
+        return processRequest(data);
+    }
+
+    // Event-loop entry point for binary connections: one frame in, one ack frame out
+    CompletableFuture<byte[]> handleFrame(ByteBuffer body) {
+        return processFrame(WireProtocol.decode(body));
+    }
+
     private void handleClient(Socket clientSocket) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
+        acceptedClients.increment();
+        openClients.incrementAndGet();
+        try (BufferedInputStream in = new BufferedInputStream(clientSocket.getInputStream());
+                OutputStream out = clientSocket.getOutputStream()) {
 
-            String data = in.readLine();
+            // The first byte selects the protocol for the whole connection
+            in.mark(1);
+            if (in.read() == (WireProtocol.MAGIC & 0xFF)) {
+                handleBinaryClient(new DataInputStream(in), new BufferedOutputStream(out));
+                return;
+            }
+            in.reset();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            String data = reader.readLine();
             if (data != null) {
-                System.out.println("Received: " + data);
-                processRequest(data);
-                out.println("{\"status\": \"ack\"}");
+                LOG.fine(() -> "Received: " + data);
+                PrintWriter writer = new PrintWriter(out, true);
+                writer.println(processRequest(data).join());
             }
         } catch (IOException e) {
             System.out.println("Error handling client: " + e.getMessage());
+        } catch (RuntimeException e) {
+            System.out.println("Error handling client, closing it: " + e);
+        } finally {
+            openClients.decrementAndGet();
+        }
+    }
+
+    private void handleBinaryClient(DataInputStream in, BufferedOutputStream out) throws IOException {
+        WireProtocol.Frame frame;
+        while ((frame = WireProtocol.read(in)) != null) {
+            out.write(processFrame(frame).join());
+            if (in.available() == 0) {
+                out.flush();                                      // pipelined frames share one flush
+            }
         }
+        out.flush();
     }
 
-    private void processRequest(String request) {
+    // Completes at once unless the command is forwarded to another node, which answers later
+    private CompletableFuture<byte[]> processFrame(WireProtocol.Frame frame) {
+        long start = System.nanoTime();
+        try {
+            checkFrame(frame);                            // a malformed frame does not renew the lease
+        } catch (Rejected e) {
+            metrics.command(WireProtocol.name(frame.opcode), start);
+            return CompletableFuture.completedFuture(WireProtocol.nack(e.getMessage()));
+        }
+        heardFrom(frame.id, frame.opcode != WireProtocol.REGISTER && frame.opcode != WireProtocol.DEREGISTER
+                && frame.opcode != WireProtocol.DISCONNECT && frame.opcode != WireProtocol.RECONNECT);
+        String group = frame.opcode == WireProtocol.GSEND ? frame.group()
+                : frame.opcode == WireProtocol.MSEND || frame.opcode == WireProtocol.MSEND_BATCH ? Group.DEFAULT
+                : null;
+        if (group != null && cluster != null && !cluster.owns(group)) {
+            return forward(group, frame.opcode, frame.id, frame.payload).handle((sequence, error) -> {
+                metrics.command(WireProtocol.name(frame.opcode), start);
+                return error == null ? WireProtocol.ack(sequence) : WireProtocol.nack(error.getMessage());
+            });
+        }
+        byte[] response;
+        try {
+            response = WireProtocol.ack(executeFrame(frame));
+        } catch (Rejected e) {
+            response = WireProtocol.nack(e.getMessage());
+        }
+        metrics.command(WireProtocol.name(frame.opcode), start);
+        return CompletableFuture.completedFuture(response);
+    }
+
+    // Returns the sequence to ack: a message's sequence or a starting cursor, 0 if there is none
+    private long executeFrame(WireProtocol.Frame frame) throws Rejected {
+        long sequence = 0;
+        switch (frame.opcode) {
+            case WireProtocol.REGISTER:
+                sequence = register(frame.id, frame.ip(), frame.port());
+                break;
+            case WireProtocol.DEREGISTER:
+                deregister(frame.id);
+                break;
+            case WireProtocol.DISCONNECT:
+                disconnect(frame.id);
+                break;
+            case WireProtocol.RECONNECT:
+                reconnect(frame.id, frame.ip(), frame.port());
+                break;
+            case WireProtocol.MSEND:
+                sequence = multicast(frame.id, Group.DEFAULT, frame.text());
+                break;
+            case WireProtocol.MSEND_BATCH:
+                List<String> batch;
+                try {
+                    batch = frame.texts();
+                } catch (IllegalArgumentException e) {
+                    throw new Rejected(e.getMessage());
+                }
+                sequence = multicastBatch(frame.id, batch);
+                break;
+            case WireProtocol.JOIN:
+                sequence = join(frame.id, frame.text());
+                break;
+            case WireProtocol.LEAVE:
+                leave(frame.id, frame.text());
+                break;
+            case WireProtocol.GSEND:
+                sequence = multicast(frame.id, frame.group(), frame.groupText());
+                break;
+            case WireProtocol.REPLICATE:
+                try {
+                    applyReplicated(WriteAheadLog.decode(frame.payload));
+                } catch (IOException e) {
+                    System.out.println("Error decoding replicated record: " + e.getMessage());
+                }
+                break;
+            case WireProtocol.PING:
+                break;
+            default:
+                throw new Rejected("unknown opcode " + frame.opcode);
+        }
+        return sequence;
+    }
+
+    // Rejects a payload executeFrame cannot parse, before the frame counts as hearing from the sender
+    private static void checkFrame(WireProtocol.Frame frame) throws Rejected {
+        int length = frame.payload.length;
+        boolean valid;
+        switch (frame.opcode) {
+            case WireProtocol.REGISTER:
+            case WireProtocol.RECONNECT:
+                valid = length > 2;                       // port and a non-empty ip
+                break;
+            case WireProtocol.MSEND_BATCH:
+                valid = length >= 4;                      // the count; texts() checks the rest
+                break;
+            case WireProtocol.JOIN:
+            case WireProtocol.LEAVE:
+                valid = length > 0;
+                break;
+            case WireProtocol.GSEND:
+                valid = length > 2 && 2 + (((frame.payload[0] & 0xFF) << 8) | (frame.payload[1] & 0xFF)) <= length;
+                break;
+            case WireProtocol.DEREGISTER:
+            case WireProtocol.DISCONNECT:
+            case WireProtocol.MSEND:
+            case WireProtocol.PING:
+            case WireProtocol.REPLICATE:
+                valid = true;
+                break;
+            default:
+                System.out.println("Error: Unknown opcode - " + frame.opcode);
+                throw new Rejected("unknown opcode " + frame.opcode);
+        }
+        if (!valid) {
+            System.out.println("Error: Invalid " + WireProtocol.name(frame.opcode) + " frame.");
+            throw new Rejected("invalid " + WireProtocol.name(frame.opcode) + " frame");
+        }
+    }
+
+    // Returns the response line: the stats snapshot for "stats", otherwise the ack or the error
+    private CompletableFuture<String> processRequest(String request) {
         String[] parts = request.split(" ");
         String command = parts[0];
-        String participantId;
+        if (command.equals("stats")) {
+            return CompletableFuture.completedFuture(metrics.toJson());
+        }
+        long start = System.nanoTime();
+        try {
+            checkRequest(parts);                          // a malformed command does not renew the lease
+        } catch (Rejected e) {
+            metrics.command(COMMANDS.contains(command) ? command : "unknown", start);
+            return CompletableFuture.completedFuture(error(e.getMessage()));
+        }
+        if (parts.length > 1) {
+            heardFrom(parts[1], !command.equals("register") && !command.equals("deregister")
+                    && !command.equals("disconnect") && !command.equals("reconnect"));
+        }
+        String group = command.equals("gsend") && parts.length >= 4 ? parts[2]
+                : command.equals("msend") && parts.length >= 3 ? Group.DEFAULT
+                : null;
+        if (group != null && cluster != null && !cluster.owns(group)) {
+            String message = String.join(" ", Arrays.copyOfRange(parts, command.equals("gsend") ? 3 : 2, parts.length));
+            return forward(group, WireProtocol.GSEND, parts[1], WireProtocol.groupPayload(group, message))
+                    .handle((sequence, error) -> {
+                        metrics.command(command, start);
+                        return error == null ? ACK : error(error.getMessage());
+                    });
+        }
+        String response = ACK;
+        try {
+            executeRequest(request, parts);
+        } catch (Rejected e) {
+            response = error(e.getMessage());
+        }
+        metrics.command(COMMANDS.contains(command) ? command : "unknown", start);
+        return CompletableFuture.completedFuture(response);
+    }
+
+    private static String error(String reason) {
+        return "{\"status\": \"error\", \"reason\": \"" + reason.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+    }
+
+    private static final Set<String> COMMANDS = new HashSet<>(Arrays.asList(
+            "register", "deregister", "disconnect", "reconnect", "msend", "join", "leave", "gsend"));
+
+    // Rejects an unknown command or a wrong argument count, before it counts as hearing from the sender
+    private static void checkRequest(String[] parts) throws Rejected {
+        String command = parts[0];
+        boolean valid;
+        switch (command) {
+            case "register":
+            case "reconnect":
+                valid = parts.length == 4 && parts[3].matches("\\d{1,5}");
+                break;
+            case "deregister":
+            case "disconnect":
+                valid = parts.length == 2;
+                break;
+            case "join":
+            case "leave":
+                valid = parts.length == 3;
+                break;
+            case "msend":
+                valid = parts.length >= 3;
+                break;
+            case "gsend":
+                valid = parts.length >= 4;
+                break;
+            default:
+                System.out.println("Error: Unknown command - " + command);
+                throw new Rejected("unknown command " + command);
+        }
+        if (!valid) {
+            System.out.println("Error: Invalid " + command + " format.");
+            throw new Rejected("invalid " + command + " format");
+        }
+    }
+
+    // The request has passed checkRequest
+    private void executeRequest(String request, String[] parts) throws Rejected {
+        String command = parts[0];
 
         // Log the received command
-        System.out.println("Received command: " + request);
+        LOG.fine(() -> "Received command: " + request);
 
         switch (command) {
             case "register":
-                if (parts.length != 4) {
-                    System.out.println("Error: Invalid register format.");
-                    return;
-                }
-                participantId = parts[1];
-                String ip = parts[2];
-                int threadBPort = Integer.parseInt(parts[3]);
-                participants.put(participantId, new ParticipantInfo(participantId, ip, threadBPort, "online"));
-                System.out.println("Participant " + participantId + " registered at IP " + ip + " and port " + threadBPort);
+                register(parts[1], parts[2], Integer.parseInt(parts[3]));
                 break;
 
             case "deregister":
-                if (parts.length != 2) {
-                    System.out.println("Error: Invalid deregister format.");
-                    return;
-                }
-                participantId = parts[1];
-                participants.remove(participantId);
-                System.out.println("Participant " + participantId + " deregistered.");
+                deregister(parts[1]);
                 break;
 
             case "disconnect":
-                if (parts.length != 2) {
-                    System.out.println("Error: Invalid disconnect format.");
-                    return;
-                }
-                participantId = parts[1];
-                ParticipantInfo p1 = participants.get(participantId);
-                if (p1 != null) {
-                    p1.setStatus("offline");
-                    System.out.println("Participant " + participantId + " disconnected.");
-                } else {
-                    System.out.println("Error: Participant " + participantId + " not found.");
-                }
+                disconnect(parts[1]);
                 break;
 
             case "reconnect":
-                if (parts.length != 4) {
-                    System.out.println("Error: Invalid reconnect format.");
-                    return;
-                }
-                participantId = parts[1];
-                //int newPort = Integer.parseInt(parts[2]);
-                int newPort = Integer.parseInt(parts[3]);
-                ParticipantInfo p2 = participants.get(participantId);
-                if (p2 != null) {
-                    p2.setPort(newPort);
-                    p2.setStatus("online");
-                    System.out.println("Participant " + participantId + " reconnected on port " + newPort);
-                    sendPendingMessages(p2);
-                } else {
-                    System.out.println("Error: Participant " + participantId + " not found.");
-                }
+                reconnect(parts[1], parts[2], Integer.parseInt(parts[3]));
                 break;
 
             case "msend":
-                if (parts.length < 3) {
-                    System.out.println("Error: Invalid msend format.");
-                    return;
-                }
-                participantId = parts[1];
-                String message = String.join(" ", Arrays.copyOfRange(parts, 2, parts.length));
-                //System.out.println("Message from " + participantId + ": " + message);
+                multicast(parts[1], Group.DEFAULT, String.join(" ", Arrays.copyOfRange(parts, 2, parts.length)));
+                break;
 
-                Message m = new Message(participantId, message, System.currentTimeMillis());
-                messages.add(m);
+            case "join":
+                join(parts[1], parts[2]);
+                break;
 
-                // immediate fan‑out to all **online** members
-                sendMessagesToOnlineParticipants(m);
-                System.out.println("Multicast from " + participantId + ": " + message);
+            case "leave":
+                leave(parts[1], parts[2]);
+                break;
+
+            case "gsend":
+                multicast(parts[1], parts[2], String.join(" ", Arrays.copyOfRange(parts, 3, parts.length)));
                 break;
 
             default:
-                System.out.println("Error: Unknown command - " + command);
+                throw new Rejected("unknown command " + command);
         }
     }
 
-    private void sendPendingMessages(ParticipantInfo pi) {
-        long horizon = System.currentTimeMillis() - (persistenceTime * 1000L);
-        for (Message msg : messages) {
-            if (msg.getTimestamp() <= horizon) continue;                 // outside td window
-            if (msg.getTimestamp() <= pi.getLastDelivered()) continue;   // duplicate
-            sendSingleMessage(pi, msg);
+    // Returns the participant's starting cursor in the default group
+    private long register(String participantId, String ip, int threadBPort) {
+        ParticipantInfo registered = new ParticipantInfo(participantId, ip, threadBPort, ParticipantInfo.Status.ONLINE);
+        registered.setHome(nodeId());
+        registered.openChannel(connectTimeoutMs);
+        ParticipantInfo previous = participants.put(registered);
+        if (previous != null) {
+            previous.closeChannel();                      // re-register replaces the old endpoint
+            leaveAll(previous);
         }
+        Subscription sub = everyone.join(registered);     // only messages sent after joining
+        logEvent(WriteAheadLog.REGISTER, participantId, ip, threadBPort, nodeId(), sub.getAckedSequence(), 0);
+        System.out.println("Participant " + participantId + " registered at IP " + ip + " and port " + threadBPort);
+        fanOut.wake(sub);                                 // anything sent while the join was in progress
+        return sub.getAckedSequence();
     }
 
-    private void sendMessagesToOnlineParticipants(Message fresh) {
-        for (ParticipantInfo pi : participants.values()) {
-            if (!"online".equals(pi.getStatus())) 
-                continue;
-            sendSingleMessage(pi, fresh);
+    private void deregister(String participantId) {
+        ParticipantInfo removed = participants.remove(participantId);
+        if (removed != null) {
+            removed.closeChannel();
+            leaveAll(removed);
+            logEvent(WriteAheadLog.DEREGISTER, participantId, null, 0, null, 0, 0);
         }
+        System.out.println("Participant " + participantId + " deregistered.");
     }
 
-    private void sendSingleMessage(ParticipantInfo pi, Message msg) {
-        try (Socket s = new Socket(pi.getIp(), pi.getPort());
-             PrintWriter out = new PrintWriter(s.getOutputStream(), true)) 
-             {
-                out.println("msend " + msg.getSenderId() + " " + msg.getMessage());
-                pi.setLastDelivered(msg.getTimestamp());          // mark delivered
-                System.out.printf("[TX] \"%s\" -> %s%n", msg.getMessage(), pi.getId());
-    
-        } catch (IOException e) {
-            System.out.println("Error sending to " + pi.getId() + ": " + e.getMessage());
-            pi.setStatus("offline");                          // mark unreachable
+    private void leaveAll(ParticipantInfo pi) {
+        for (Subscription sub : new ArrayList<>(pi.getSubscriptions())) {
+            sub.getGroup().leave(pi);
+        }
+    }
+
+    private void disconnect(String participantId) throws Rejected {
+        ParticipantInfo p1 = participants.get(participantId);
+        if (p1 != null) {
+            participants.setOffline(p1);
+            p1.closeChannel();
+            logCursors(p1, WriteAheadLog.DISCONNECT);
+            System.out.println("Participant " + participantId + " disconnected.");
+        } else {
+            System.out.println("Error: Participant " + participantId + " not found.");
+            throw new Rejected("participant " + participantId + " is not registered");
         }
     }
 
-    private void sendMessagesToParticipant(String participantId) {
-        ParticipantInfo participant = participants.get(participantId);
-        if (participant == null || !participant.getStatus().equals("online"))
+    /**
+     * Renews the participant's lease. An EXPIRED participant that is heard from again,
+     * other than through a command that sets its status anyway, is resumed at its last
+     * endpoint and replays from its acked cursors.
+     */
+    private void heardFrom(String participantId, boolean mayResume) {
+        ParticipantInfo pi = participants.get(participantId);
+        if (pi == null) {
             return;
+        }
+        pi.heard();
+        if (mayResume && isLocal(pi.getHome()) && participants.claimExpired(pi)) {
+            metrics.leasesResumed.increment();
+            System.out.println("Participant " + participantId + " is back; resuming delivery.");
+            try {
+                reconnect(participantId, pi.getIp(), pi.getPort());
+            } catch (Rejected e) {
+                // Deregistered meanwhile; nothing to resume
+            }
+        }
+    }
 
-        long currentTime = System.currentTimeMillis();
-        long thresholdTime = currentTime - (persistenceTime * 1000);
+    // Takes silent participants offline before fan-out has to find out by timing out on them
+    private void expireLeases() {
+        long deadline = System.currentTimeMillis() - leaseMs;
+        for (ParticipantInfo pi : participants.online()) {
+            if (isLocal(pi.getHome()) && participants.expire(pi, deadline)) {
+                metrics.leasesExpired.increment();
+                logCursors(pi, WriteAheadLog.EXPIRE);         // so it is still resumed after a restart
+                System.out.println("Participant " + pi.getId() + " expired: not heard from in " + leaseMs + " ms.");
+            }
+        }
+    }
 
-        List<Message> eligibleMessages = messages.stream()
-                .filter(msg -> msg.getTimestamp() > thresholdTime)
-                .collect(Collectors.toList());
+    // Slow-consumer policy: treated like a disconnect, so it replays from its acks on reconnect.
+    // Returns false if another sender already took it offline
+    private boolean demote(ParticipantInfo pi) {
+        if (!participants.takeOffline(pi)) {
+            return false;
+        }
+        logCursors(pi, WriteAheadLog.DISCONNECT);
+        System.out.println("Participant " + pi.getId() + " demoted to offline: outbound backlog over the limit.");
+        return true;
+    }
 
-        for (Message message : eligibleMessages) {
-            try (Socket socket = new Socket(participant.getIp(), participant.getPort());
-                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+    // Record the status change (DISCONNECT or EXPIRE) and every group's acked cursor, so a recovered
+    // Coordinator resumes from them
+    private void logCursors(ParticipantInfo pi, byte type) {
+        long position = appendEvent(type, pi.getId(), null, 0, null,
+                pi.getSubscription(Group.DEFAULT).getAckedSequence(), 0, Group.DEFAULT);
+        for (Subscription sub : pi.getSubscriptions()) {
+            if (sub.getGroup() != everyone) {
+                position = appendEvent(WriteAheadLog.JOIN, pi.getId(), null, 0, null,
+                        sub.getAckedSequence(), 0, sub.getGroup().getName());
+            }
+        }
+        awaitDurable(position);
+    }
 
-                out.println("msend " + message.getSenderId() + " " + message.getMessage());
+    // Unknown here, e.g. registered through a node whose record never arrived: the client tries another node
+    private void reconnect(String participantId, String ip, int newPort) throws Rejected {
+        ParticipantInfo p2 = participants.get(participantId);
+        if (p2 != null) {
+            p2.setEndpoint(ip, newPort);
+            p2.setHome(nodeId());
+            p2.openChannel(connectTimeoutMs);                             // new thread-B endpoint
+            for (Subscription sub : p2.getSubscriptions()) {
+                sub.rewindToAcked();                                      // resend anything unconfirmed
+            }
+            participants.setOnline(p2);
+            logEvent(WriteAheadLog.RECONNECT, participantId, ip, newPort, nodeId(), 0, 0);
+            System.out.println("Participant " + participantId + " reconnected on port " + newPort);
+            sendPendingMessages(p2);
+        } else {
+            System.out.println("Error: Participant " + participantId + " not found.");
+            throw new Rejected("participant " + participantId + " is not registered");
+        }
+    }
 
+    // Returns the member's starting cursor in the group
+    private long join(String participantId, String groupName) throws Rejected {
+        ParticipantInfo pi = participants.get(participantId);
+        if (pi == null) {
+            System.out.println("Error: Participant " + participantId + " not found.");
+            throw new Rejected("participant " + participantId + " is not registered");
+        }
+        if (groupName.isEmpty() || groupName.indexOf(' ') >= 0) {
+            System.out.println("Error: Invalid group name '" + groupName + "'.");
+            throw new Rejected("invalid group name '" + groupName + "'");
+        }
+        Subscription sub = group(groupName).join(pi);
+        awaitDurable(appendEvent(WriteAheadLog.JOIN, participantId, null, 0, null, sub.getAckedSequence(), 0,
+                groupName));
+        System.out.println("Participant " + participantId + " joined group " + groupName);
+        fanOut.wake(sub);
+        return sub.getAckedSequence();
+    }
+
+    private void leave(String participantId, String groupName) throws Rejected {
+        ParticipantInfo pi = participants.get(participantId);
+        Group g = groups.get(groupName);
+        if (pi == null || g == null || g == everyone || g.leave(pi) == null) {
+            System.out.println("Error: Participant " + participantId + " cannot leave group " + groupName + ".");
+            throw new Rejected(participantId + " is not a member of group " + groupName);
+        }
+        awaitDurable(appendEvent(WriteAheadLog.LEAVE, participantId, null, 0, null, 0, 0, groupName));
+        System.out.println("Participant " + participantId + " left group " + groupName);
+    }
+
+    // Returns the message's sequence within its group
+    private long multicast(String participantId, String groupName, String message) throws Rejected {
+        Group g = groups.get(groupName);
+        if (g == null) {
+            System.out.println("Error: Group " + groupName + " does not exist.");
+            throw new Rejected("group " + groupName + " does not exist");
+        }
+        outbound.awaitCapacity(g);
+        MessageStore store = g.getMessages();
+        Message m;
+        long position;
+        synchronized (store) {                            // log records in sequence order
+            m = store.append(participantId, message);
+            position = appendLocal(new WriteAheadLog.Record(WriteAheadLog.MSEND, participantId, null, 0, message,
+                    m.getSequence(), m.getTimestamp(), groupName));
+        }
+        replicatePending();
+        awaitDurable(position);
+
+        // wake the group's fan-out; the ack does not wait for delivery
+        wakeSubscribers(g);
+        metrics.messagesStored.increment();
+        LOG.fine(() -> "Multicast from " + participantId + " to " + groupName + ": " + message);
+        return m.getSequence();
+    }
+
+    // A batch is stored, logged and synced as a unit, then fanned out with a single wake-up
+    private long multicastBatch(String participantId, List<String> batch) {
+        MessageStore store = everyone.getMessages();
+        if (batch.isEmpty()) {
+            return store.lastSequence();
+        }
+        outbound.awaitCapacity(everyone);
+        List<Message> appended;
+        long position = -1;
+        synchronized (store) {
+            appended = store.appendAll(participantId, batch);
+            for (Message m : appended) {
+                position = appendLocal(new WriteAheadLog.Record(WriteAheadLog.MSEND, participantId, null, 0,
+                        m.getMessage(), m.getSequence(), m.getTimestamp(), Group.DEFAULT));
+            }
+        }
+        replicatePending();
+        awaitDurable(position);
+
+        wakeSubscribers(everyone);
+        metrics.messagesStored.add(batch.size());
+        LOG.fine(() -> "Multicast batch of " + batch.size() + " from " + participantId);
+        return appended.get(appended.size() - 1).getSequence();
+    }
+
+    /**
+     * Only a group's owner sequences its messages; they come back here through replication.
+     * Nothing waits for the owner's answer, so an event loop is never held up by a peer,
+     * and a failure is reported with a reason fit for the client's error response.
+     */
+    private CompletableFuture<Long> forward(String groupName, byte opcode, String participantId, byte[] payload) {
+        String owner = cluster.owner(groupName);
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        cluster.forward(groupName, opcode, participantId, payload).whenComplete((sequence, error) -> {
+            if (error == null) {
+                result.complete(sequence);
+                return;
+            }
+            System.out.println("Error forwarding to " + owner + ", owner of group " + groupName + ": "
+                    + error.getMessage());
+            result.completeExceptionally(new Rejected("owner " + owner + " of group " + groupName + " failed: "
+                    + error.getMessage()));
+        });
+        return result;
+    }
+
+    // The backlog streams in the background from each group's acked sequence
+    private void sendPendingMessages(ParticipantInfo pi) {
+        for (Subscription sub : pi.getSubscriptions()) {
+            long missed = sub.getGroup().getMessages().firstSequence() - sub.getAckedSequence() - 1;
+            if (missed > 0) {
+                System.out.println("Participant " + pi.getId() + " missed " + missed + " messages in group "
+                        + sub.getGroup().getName() + " that fell outside the persistence window.");
+            }
+            fanOut.wake(sub);
+        }
+    }
+
+    // seek past both the td window and what was already delivered
+    private List<Message> pendingMessages(Subscription sub, long after, int max) {
+        if (!sub.isActive() || !sub.getParticipant().isOnline()) {
+            return Collections.emptyList();
+        }
+        return sub.getGroup().getMessages().since(after, retentionHorizon(), max);
+    }
+
+    private long retentionHorizon() {
+        return System.currentTimeMillis() - (persistenceTime * 1000L);
+    }
+
+    private void evictExpiredMessages() {
+        long horizon = retentionHorizon();
+        for (Group g : groups.values()) {
+            g.getMessages().evictOlderThan(horizon);
+        }
+        if (wal != null) {
+            try {
+                wal.compactExpired(horizon);
             } catch (IOException e) {
-                System.out.println("Error sending message to " + participantId + ": " + e.getMessage());
+                System.out.println("WAL: could not compact expired segments: " + e.getMessage());
+            }
+        }
+    }
+
+    private void wakeSubscribers(Group g) {
+        for (Subscription sub : g.online()) {
+            if (outbound.admit(sub)) {
+                fanOut.wake(sub);
+            }
+        }
+    }
+
+    // Each message is encoded on its first delivery and the bytes reused for every recipient
+    private boolean sendBatch(Subscription sub, long after, List<Message> batch) {
+        ParticipantInfo pi = sub.getParticipant();
+        ParticipantChannel channel = pi.getChannel();
+        if (channel == null || !pi.isOnline()) {
+            return false;                                 // went offline while the wake-up was pending
+        }
+        if (sub.getSentSequence() != after) {
+            return true;                                  // rewound by a reconnect since the read; read again
+        }
+        long start = System.nanoTime();
+        long bytes = 0;
+        List<byte[]> frames = new ArrayList<>(batch.size());
+        for (Message msg : batch) {
+            byte[] frame = msg.getFrame();
+            if (frame == null) {
+                frame = DeliveryFrame.encode(sub.getGroup().getName(), msg, compressAtBytes);
+                msg.setFrame(frame);
             }
+            frames.add(frame);
+            bytes += frame.length;
+        }
+        try {
+            channel.sendAll(frames);
+            // A rewind during the write wins: the batch is resent from the acked cursor rather than skipped
+            sub.advanceSent(after, batch.get(batch.size() - 1).getSequence());  // acked separately by the participant
+            pi.delivered();
+            metrics.delivered(batch, bytes, start);
+            if (LOG.isLoggable(Level.FINE)) {
+                for (Message msg : batch) {
+                    LOG.fine(String.format("[TX] \"%s\" -> %s", msg.getMessage(), pi.getId()));
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            metrics.sendFailures.increment();
+            System.out.println("Error sending to " + pi.getId() + ": " + e.getMessage());
+            // Under a lease it expires, so its heartbeats resume it; unless it already reconnected
+            ParticipantInfo.Status status = leaseMs > 0
+                    ? ParticipantInfo.Status.EXPIRED : ParticipantInfo.Status.OFFLINE;
+            if (leaseMs > 0) {
+                pi.deliveryFailed(leaseMs);                   // its endpoint is likely still dead; don't retry at once
+            }
+            if (participants.markUnreachable(pi, channel, status) && leaseMs > 0) {
+                metrics.leasesExpired.increment();
+                logCursors(pi, WriteAheadLog.EXPIRE);
+                System.out.println("Participant " + pi.getId() + " expired: delivery failed; resuming when heard from"
+                        + " after " + (pi.getResumeAfter() - System.currentTimeMillis()) + " ms.");
+            }
+            return false;
         }
     }
 
-    private void sendMessagesToOnlineParticipants() {
-        for (ParticipantInfo participant : participants.values()) {
-            if (participant.getStatus().equals("online")) {
-                sendMessagesToParticipant(participant.getId());
+    // Console output stays plain lines on stdout; log.level=FINE restores the per-message trace
+    private static void configureLogging(String level) {
+        Handler console = new StreamHandler(System.out, new Formatter() {
+            @Override
+            public String format(LogRecord record) {
+                return formatMessage(record) + System.lineSeparator();
+            }
+        }) {
+            @Override
+            public synchronized void publish(LogRecord record) {
+                super.publish(record);
+                flush();
             }
+        };
+        console.setLevel(Level.ALL);
+        Logger root = Logger.getLogger("");
+        for (Handler h : root.getHandlers()) {
+            root.removeHandler(h);
         }
+        root.addHandler(console);
+        LOG.setLevel(Level.parse(level.toUpperCase()));
     }
 
     public static void main(String[] args) {
@@ -203,24 +1165,15 @@ public class Coordinator {
         try (BufferedReader reader = new BufferedReader(new FileReader(args[0]))) {
             int port = Integer.parseInt(reader.readLine().trim());
             int persistenceTime = Integer.parseInt(reader.readLine().trim());
-            new Coordinator(port, persistenceTime).start();
+            // Optional tuning follows as key=value lines, e.g. fanout.threads=16
+            Properties options = new Properties();
+            options.load(reader);
+            configureLogging(options.getProperty("log.level", "INFO").trim());
+            new Coordinator(port, persistenceTime, options).start();
         } catch (IOException e) {
             System.out.println("Error reading config file: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error in config file: " + e.getMessage());
         }
     }
-
-    private void broadcastSystemMessage(String message) {
-        for (ParticipantInfo participant : participants.values()) {
-            if ("online".equals(participant.getStatus())) {
-                try (Socket socket = new Socket(participant.getIp(), participant.getPort());
-                        PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-                    out.println(message);
-                } catch (IOException e) {
-                    System.out
-                            .println("Error sending system message to " + participant.getId() + ": " + e.getMessage());
-                }
-            }
-        }
-    }
-
 }
@@ -0,0 +1,257 @@
+import java.io.*;
+import java.net.*;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * Persistent binary-protocol connection from a participant to the Coordinator.
+ * Commands are pipelined: {@link #send} writes a frame and returns a future that
+ * completes when its ack arrives, or fails when the Coordinator answers with a
+ * NACK, and responses come back in send order. A broken
+ * connection fails the commands still in flight and is reopened on the next send.
+ * Between {@link #startHeartbeats} and {@link #stopHeartbeats}, e.g. while the
+ * participant is registered and online, an idle connection is kept alive, and
+ * checked, with periodic PING frames, which also reopen a broken one so the
+ * Coordinator keeps hearing from this client.
+ * Given several endpoints, e.g. the nodes of a Coordinator cluster, a connection
+ * that cannot be opened moves on to the next one.
+ */
+public class CoordinatorClient implements Closeable {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final List<String> endpoints;               // "host:port", tried in order
+    private int current;                                // guarded by writeLock
+    private final String participantId;
+    private final long heartbeatMs;
+    private final long timeoutMs;                       // longest call() waits for an ack; 0 waits indefinitely
+    private final ScheduledExecutorService heartbeats;
+    private ScheduledFuture<?> heartbeat;               // guarded by heartbeats; null while stopped
+    private final Object writeLock = new Object();
+
+    private volatile Connection connection;             // changed under writeLock; abort() reads it without
+    private volatile long lastWrite;
+    private volatile boolean closed;
+
+    private final class Connection {
+        final Socket socket;
+        final DataOutputStream out;
+        final Queue<CompletableFuture<Long>> inFlight = new ConcurrentLinkedQueue<>();
+        volatile boolean broken;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.out.write(WireProtocol.MAGIC);
+        }
+
+        void readAcks() {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                WireProtocol.Frame frame;
+                while ((frame = WireProtocol.read(in)) != null) {
+                    CompletableFuture<Long> future = inFlight.poll();
+                    if (future == null) {
+                        continue;
+                    }
+                    if (frame.opcode == WireProtocol.NACK) {
+                        future.completeExceptionally(new IOException("Coordinator rejected the command: " + frame.text()));
+                    } else {
+                        future.complete(frame.sequence);
+                    }
+                }
+                fail(new IOException("Coordinator closed the connection"));
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void fail(IOException cause) {
+            broken = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+            CompletableFuture<Long> future;
+            while ((future = inFlight.poll()) != null) {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    public CoordinatorClient(String host, int port, String participantId, long heartbeatMs) {
+        this(Collections.singletonList(host + ":" + port), participantId, heartbeatMs);
+    }
+
+    public CoordinatorClient(List<String> endpoints, String participantId, long heartbeatMs) {
+        this(endpoints, participantId, heartbeatMs, 0);
+    }
+
+    public CoordinatorClient(List<String> endpoints, String participantId, long heartbeatMs, long timeoutMs) {
+        this.endpoints = endpoints;
+        this.participantId = participantId;
+        this.heartbeatMs = heartbeatMs;
+        this.timeoutMs = timeoutMs;
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "heartbeat-" + participantId);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Starts pinging every heartbeatMs while idle; does nothing if already started or heartbeatMs is 0. */
+    public void startHeartbeats() {
+        synchronized (heartbeats) {
+            if (heartbeat == null && heartbeatMs > 0 && !closed) {
+                heartbeat = heartbeats.scheduleWithFixedDelay(this::heartbeat, heartbeatMs, heartbeatMs,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    public void stopHeartbeats() {
+        synchronized (heartbeats) {
+            if (heartbeat != null) {
+                heartbeat.cancel(false);
+                heartbeat = null;
+            }
+        }
+    }
+
+    /** Pipelines one command; the future yields the sequence carried by its ack. */
+    public CompletableFuture<Long> send(byte opcode, byte[] payload) {
+        return send(opcode, participantId, payload);
+    }
+
+    /** Pipelines a command on behalf of {@code id}, e.g. one forwarded between cluster nodes. */
+    public CompletableFuture<Long> send(byte opcode, String id, byte[] payload) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        byte[] frame = WireProtocol.encode(opcode, id, 0, payload);
+        synchronized (writeLock) {
+            try {
+                Connection c = connect();
+                c.inFlight.add(future);                 // before the write, so the ack always finds it
+                c.out.write(frame);
+                c.out.flush();
+                lastWrite = System.currentTimeMillis();
+            } catch (IOException e) {
+                if (connection != null) {
+                    connection.fail(e);
+                }
+                future.completeExceptionally(e);
+            }
+        }
+        return future;
+    }
+
+    /** Sends one command and waits for its ack. */
+    public long call(byte opcode, byte[] payload) throws IOException {
+        return call(opcode, participantId, payload);
+    }
+
+    public long call(byte opcode, String id, byte[] payload) throws IOException {
+        CompletableFuture<Long> ack = send(opcode, id, payload);
+        try {
+            return timeoutMs > 0 ? ack.get(timeoutMs, TimeUnit.MILLISECONDS) : ack.get();
+        } catch (TimeoutException e) {
+            throw new IOException("No answer from the Coordinator in " + timeoutMs + " ms");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the Coordinator", e);
+        }
+    }
+
+    private Connection connect() throws IOException {
+        if (closed) {
+            throw new IOException("Client is closed");
+        }
+        if (connection == null || connection.broken) {
+            Socket socket = open();
+            socket.setTcpNoDelay(true);
+            Connection c = new Connection(socket);
+            Thread reader = new Thread(c::readAcks, "coordinator-acks-" + participantId);
+            reader.setDaemon(true);
+            reader.start();
+            connection = c;
+        }
+        return connection;
+    }
+
+    // Starts from the endpoint that last worked and moves on while connects fail
+    private Socket open() throws IOException {
+        IOException failure = null;
+        for (int attempt = 0; attempt < endpoints.size(); attempt++) {
+            String endpoint = endpoints.get(current);
+            int colon = endpoint.lastIndexOf(':');
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(endpoint.substring(0, colon),
+                        Integer.parseInt(endpoint.substring(colon + 1))), CONNECT_TIMEOUT_MS);
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                failure = e;
+                current = (current + 1) % endpoints.size();
+            }
+        }
+        throw failure;
+    }
+
+    public int endpointCount() {
+        return endpoints.size();
+    }
+
+    /** Drops the connection and moves on to the next endpoint, e.g. when this node rejected a reconnect. */
+    public void failover() {
+        synchronized (writeLock) {
+            if (connection != null) {
+                connection.fail(new IOException("Failing over to another Coordinator"));
+                connection = null;
+            }
+            current = (current + 1) % endpoints.size();
+        }
+    }
+
+    /** The endpoint in use, or the next one to be tried. */
+    public String getEndpoint() {
+        synchronized (writeLock) {
+            return endpoints.get(current);
+        }
+    }
+
+    /**
+     * Breaks the current connection without waiting for the write lock, so a watchdog
+     * can free a send that is stuck writing to an unresponsive peer. Commands in flight
+     * fail, and the next send reconnects.
+     */
+    public void abort() {
+        Connection c = connection;
+        if (c != null) {
+            c.fail(new IOException("Connection aborted"));
+        }
+    }
+
+    // Only ping when idle; a broken or never-opened connection is reopened by the ping itself
+    private void heartbeat() {
+        if (System.currentTimeMillis() - lastWrite < heartbeatMs) {
+            return;
+        }
+        send(WireProtocol.PING, new byte[0]);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        heartbeats.shutdownNow();
+        synchronized (writeLock) {
+            if (connection != null) {
+                connection.fail(new IOException("Client is closed"));
+                connection = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for a running Coordinator. Everything on the hot
+ * path is a LongAdder or a {@link LatencyHistogram}, so recording never takes a
+ * lock; gauges such as store size are read from the Coordinator only when a
+ * snapshot is asked for, by the stats command or over JMX.
+ */
+public class CoordinatorMetrics implements CoordinatorMetricsMBean {
+    private final Map<String, LongAdder> commands = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+    final LatencyHistogram commandMicros = new LatencyHistogram();   // request in to response ready
+    final LatencyHistogram fanOutLagMillis = new LatencyHistogram(); // stored to written, per recipient
+    final LatencyHistogram writeMicros = new LatencyHistogram();     // one batch write to one channel
+    final LongAdder messagesStored = new LongAdder();
+    final LongAdder deliveries = new LongAdder();
+    final LongAdder bytesDelivered = new LongAdder();
+    final LongAdder sendFailures = new LongAdder();
+    final LongAdder leasesExpired = new LongAdder();
+    final LongAdder leasesResumed = new LongAdder();
+
+    /** Registers a value read at snapshot time; call before the Coordinator starts serving. */
+    public synchronized void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public void command(String type, long startNanos) {
+        commands.computeIfAbsent(type, k -> new LongAdder()).increment();
+        commandMicros.record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public void delivered(Iterable<Message> batch, long bytes, long startNanos) {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Message msg : batch) {
+            fanOutLagMillis.record(now - msg.getTimestamp());
+            count++;
+        }
+        deliveries.add(count);
+        bytesDelivered.add(bytes);
+        writeMicros.record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /** Exposes these metrics over JMX; failure only costs the JMX view. */
+    public void register(int port) {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(this, new ObjectName("Coordinator:type=Metrics,port=" + port));
+        } catch (Exception e) {
+            System.out.println("Error registering metrics MBean: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public long getCommands() {
+        long n = 0;
+        for (LongAdder c : commands.values()) {
+            n += c.sum();
+        }
+        return n;
+    }
+
+    @Override
+    public long getMessagesStored() {
+        return messagesStored.sum();
+    }
+
+    @Override
+    public long getDeliveries() {
+        return deliveries.sum();
+    }
+
+    @Override
+    public long getBytesDelivered() {
+        return bytesDelivered.sum();
+    }
+
+    @Override
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    @Override
+    public long getCommandP99Micros() {
+        return commandMicros.percentile(0.99);
+    }
+
+    @Override
+    public long getFanOutLagP99Millis() {
+        return fanOutLagMillis.percentile(0.99);
+    }
+
+    @Override
+    public String getStats() {
+        return toJson();
+    }
+
+    /** One-line JSON snapshot, as returned by the stats command. */
+    public synchronized String toJson() {
+        StringBuilder sb = new StringBuilder("{\"status\": \"stats\", \"commands\": {");
+        String sep = "";
+        for (Map.Entry<String, LongAdder> c : new java.util.TreeMap<>(commands).entrySet()) {
+            sb.append(sep).append('"').append(c.getKey()).append("\": ").append(c.getValue().sum());
+            sep = ", ";
+        }
+        sb.append("}, \"messagesStored\": ").append(messagesStored.sum())
+                .append(", \"deliveries\": ").append(deliveries.sum())
+                .append(", \"bytesDelivered\": ").append(bytesDelivered.sum())
+                .append(", \"sendFailures\": ").append(sendFailures.sum())
+                .append(", \"leasesExpired\": ").append(leasesExpired.sum())
+                .append(", \"leasesResumed\": ").append(leasesResumed.sum());
+        for (Map.Entry<String, LongSupplier> g : gauges.entrySet()) {
+            sb.append(", \"").append(g.getKey()).append("\": ").append(g.getValue().getAsLong());
+        }
+        sb.append(", \"commandMicros\": ").append(commandMicros.toJson())
+                .append(", \"fanOutLagMillis\": ").append(fanOutLagMillis.toJson())
+                .append(", \"writeMicros\": ").append(writeMicros.toJson())
+                .append('}');
+        return sb.toString();
+    }
+}
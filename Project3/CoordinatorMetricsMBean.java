@@ -0,0 +1,18 @@
+/** JMX view of {@link CoordinatorMetrics}, registered as Coordinator:type=Metrics,port=<port>. */
+public interface CoordinatorMetricsMBean {
+    long getCommands();
+
+    long getMessagesStored();
+
+    long getDeliveries();
+
+    long getBytesDelivered();
+
+    long getSendFailures();
+
+    long getCommandP99Micros();
+
+    long getFanOutLagP99Millis();
+
+    String getStats();
+}
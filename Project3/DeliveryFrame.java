@@ -0,0 +1,104 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Framing for the delivery stream from the Coordinator to a participant's thread-B.
+ * A message is encoded once, the first time it is delivered, and the same immutable
+ * frame is then written to every recipient.
+ *
+ * Frame layout (big-endian): [int length of the rest][byte flags][body]. The body
+ * is the UTF-8 line "<group> <sequence> msend <sender> <text>"; with the COMPRESSED
+ * flag it is [int raw length][deflate data] instead. Bodies are only compressed from
+ * the configured threshold up, and only when that makes them smaller.
+ */
+public final class DeliveryFrame {
+    public static final byte COMPRESSED = 1;
+
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+    private DeliveryFrame() {
+    }
+
+    /** Encodes a message of {@code group}; {@code compressAtBytes} of 0 disables compression. */
+    public static byte[] encode(String group, Message msg, int compressAtBytes) {
+        byte[] body = (group + " " + msg.getSequence() + " msend " + msg.getSenderId() + " " + msg.getMessage())
+                .getBytes(StandardCharsets.UTF_8);
+        if (compressAtBytes > 0 && body.length >= compressAtBytes) {
+            byte[] deflated = deflate(body);
+            if (deflated.length + 4 < body.length) {
+                ByteBuffer buf = ByteBuffer.allocate(4 + 1 + 4 + deflated.length);
+                buf.putInt(1 + 4 + deflated.length);
+                buf.put(COMPRESSED);
+                buf.putInt(body.length);
+                buf.put(deflated);
+                return buf.array();
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(4 + 1 + body.length);
+        buf.putInt(1 + body.length);
+        buf.put((byte) 0);
+        buf.put(body);
+        return buf.array();
+    }
+
+    private static byte[] deflate(byte[] body) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(body);
+        deflater.finish();
+        byte[] out = new byte[body.length];                 // anything larger is not worth sending
+        int length = 0;
+        while (!deflater.finished() && length < out.length) {
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        return deflater.finished() ? Arrays.copyOf(out, length) : body;
+    }
+
+    /** Reads one frame and returns its line, or null on a clean end of stream. */
+    public static String read(DataInputStream in, Inflater inflater) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 1 || length > WireProtocol.MAX_FRAME_BYTES) {
+            throw new IOException("Bad delivery frame length " + length);
+        }
+        byte flags = in.readByte();
+        byte[] body = new byte[length - 1];
+        in.readFully(body);
+        if ((flags & COMPRESSED) == 0) {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+        int rawLength = ByteBuffer.wrap(body).getInt();
+        if (rawLength < 0 || rawLength > WireProtocol.MAX_FRAME_BYTES) {
+            throw new IOException("Bad delivery frame size " + rawLength);
+        }
+        byte[] raw = new byte[rawLength];
+        inflater.reset();
+        inflater.setInput(body, 4, body.length - 4);
+        try {
+            int filled = 0;
+            while (filled < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, filled, rawLength - filled);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                filled += n;
+            }
+            if (filled != rawLength) {
+                throw new IOException("Truncated compressed delivery frame");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed delivery frame", e);
+        }
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+}
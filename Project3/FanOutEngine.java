@@ -0,0 +1,99 @@
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Delivers retained messages to participants off the command-handling thread.
+ * Nothing is copied per recipient: each subscription's sent sequence is a cursor
+ * into its group's message store, and a wake-up makes one worker stream everything
+ * past that cursor in batches. Live traffic and reconnect backlog therefore share
+ * one ordered path, and a slow or dead peer only delays itself.
+ */
+public class FanOutEngine {
+    private final ExecutorService workers;
+    private final ScheduledExecutorService watchdog;
+    private final int writeTimeoutMs;
+    private final int batchSize;
+    private final int batchesPerTurn;
+    private final Source source;
+    private final Sender sender;
+
+    /** Returns up to {@code max} messages past sequence {@code after}, oldest first. */
+    public interface Source {
+        List<Message> pending(Subscription sub, long after, int max);
+    }
+
+    /**
+     * Writes a batch read past {@code after} to one subscriber and moves its cursor, unless
+     * the cursor has moved since the read; returns false if the participant is unreachable.
+     */
+    public interface Sender {
+        boolean send(Subscription sub, long after, List<Message> batch);
+    }
+
+    public FanOutEngine(int threads, int writeTimeoutMs, int batchSize, int batchesPerTurn,
+                        Source source, Sender sender) {
+        this.workers = Executors.newFixedThreadPool(threads, daemonThreads("fanout"));
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(daemonThreads("fanout-watchdog"));
+        this.writeTimeoutMs = writeTimeoutMs;
+        this.batchSize = batchSize;
+        this.batchesPerTurn = batchesPerTurn;
+        this.source = source;
+        this.sender = sender;
+    }
+
+    /** Signals that the subscription may have messages past its cursor. */
+    public void wake(Subscription sub) {
+        sub.getWakeup().set(true);
+        if (sub.getDraining().compareAndSet(false, true)) {
+            workers.execute(() -> drain(sub));
+        }
+    }
+
+    private void drain(Subscription sub) {
+        boolean caughtUp = false;
+        try {
+            // Bounded turns keep a long backlog from monopolising a worker
+            for (int turn = 0; turn < batchesPerTurn; turn++) {
+                sub.getWakeup().set(false);
+                long after = sub.getSentSequence();       // a rewind after this read voids the batch
+                List<Message> batch = source.pending(sub, after, batchSize);
+                if (batch.isEmpty() || !deliver(sub, after, batch)) {
+                    caughtUp = true;                      // or offline; reconnect resumes from the cursor
+                    break;
+                }
+            }
+        } finally {
+            sub.getDraining().set(false);
+        }
+        // Catch wake-ups that raced with the last empty read, and yield-then-continue long backlogs
+        if (!caughtUp || sub.getWakeup().get()) {
+            wake(sub);
+        }
+    }
+
+    private boolean deliver(Subscription sub, long after, List<Message> batch) {
+        ParticipantChannel channel = sub.getParticipant().getChannel();
+        ScheduledFuture<?> timeout = channel == null ? null
+                : watchdog.schedule(channel::abort, writeTimeoutMs, TimeUnit.MILLISECONDS);
+        try {
+            return sender.send(sub, after, batch);
+        } finally {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+        watchdog.shutdownNow();
+    }
+
+    static ThreadFactory daemonThreads(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,144 @@
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A named multicast group with its own retained messages and sequence space. The
+ * subscriptions of online members are kept in a copy-on-write array, so a
+ * multicast only walks its own group's online subscribers.
+ *
+ * Groups are never dropped once created: participants dedupe by per-group
+ * sequence, so a group's sequence must not restart while the Coordinator runs.
+ */
+public class Group {
+    public static final String DEFAULT = "all";        // every registered participant is a member
+
+    private static final Subscription[] NONE = new Subscription[0];
+
+    private final String name;
+    private final MessageStore messages = new MessageStore();
+    private final ConcurrentHashMap<String, Subscription> members = new ConcurrentHashMap<>();
+    private volatile Subscription[] online = NONE;
+    private final Object ackSignal = new Object();
+    private volatile int ackWaiters;
+
+    public Group(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public MessageStore getMessages() {
+        return messages;
+    }
+
+    /**
+     * Adds the participant with its cursor at the current end of the group's messages,
+     * or returns its existing subscription if it is already a member.
+     */
+    public synchronized Subscription join(ParticipantInfo pi) {
+        Subscription existing = members.get(pi.getId());
+        if (existing != null && existing.getParticipant() == pi) {
+            return existing;
+        }
+        if (existing != null) {
+            unindex(existing);                              // left behind by an earlier registration
+            existing.cancel();
+        }
+        Subscription sub = new Subscription(pi, this);
+        sub.resetCursor(messages.lastSequence());          // only messages sent after joining
+        members.put(pi.getId(), sub);
+        pi.addSubscription(sub);
+        refresh(sub);
+        return sub;
+    }
+
+    public synchronized Subscription leave(ParticipantInfo pi) {
+        Subscription sub = members.get(pi.getId());
+        if (sub == null || sub.getParticipant() != pi) {
+            return null;
+        }
+        members.remove(pi.getId());
+        pi.removeSubscription(name);
+        unindex(sub);
+        sub.cancel();
+        return sub;
+    }
+
+    /** Brings the online index in line with the subscriber's current status. */
+    public synchronized void refresh(Subscription sub) {
+        boolean member = members.get(sub.getParticipant().getId()) == sub;
+        if (member && sub.getParticipant().isOnline()) {
+            index(sub);
+        } else {
+            unindex(sub);
+        }
+    }
+
+    // Wakes senders held back by the block policy; free when nobody is waiting
+    void ackArrived() {
+        if (ackWaiters > 0) {
+            synchronized (ackSignal) {
+                ackSignal.notifyAll();
+            }
+        }
+    }
+
+    /** Waits up to {@code timeoutMs} for an ack from any member, unless {@code blocked} is already false. */
+    public void awaitAck(long timeoutMs, BooleanSupplier blocked) throws InterruptedException {
+        synchronized (ackSignal) {
+            ackWaiters++;
+            try {
+                if (blocked.getAsBoolean()) {                  // checked after registering, so no ack is missed
+                    ackSignal.wait(timeoutMs);
+                }
+            } finally {
+                ackWaiters--;
+            }
+        }
+    }
+
+    public Subscription getSubscription(String participantId) {
+        return members.get(participantId);
+    }
+
+    /** Online subscriptions; the array is shared and must not be modified. */
+    public Subscription[] online() {
+        return online;
+    }
+
+    public Collection<Subscription> members() {
+        return members.values();
+    }
+
+    private void index(Subscription sub) {
+        if (sub.indexed) {
+            return;
+        }
+        Subscription[] current = online;
+        Subscription[] next = new Subscription[current.length + 1];
+        System.arraycopy(current, 0, next, 0, current.length);
+        next[current.length] = sub;
+        online = next;
+        sub.indexed = true;
+    }
+
+    private void unindex(Subscription sub) {
+        if (!sub.indexed) {
+            return;
+        }
+        Subscription[] current = online;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == sub) {
+                Subscription[] next = new Subscription[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                online = next.length == 0 ? NONE : next;
+                break;
+            }
+        }
+        sub.indexed = false;
+    }
+}
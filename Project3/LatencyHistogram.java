@@ -0,0 +1,90 @@
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram cheap enough to record on every command and delivery. Values
+ * below 16 get a bucket each; above that every power of two is split into eight
+ * linear sub-buckets, so a percentile, reported as the upper bound of its bucket,
+ * is within 12.5% of the true value.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int LINEAR = 2 << SUB_BITS;                     // values 0..15 are exact
+    private static final int BUCKETS = LINEAR + (63 - SUB_BITS - 1) * (1 << SUB_BITS);
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        long v = Math.max(0, value);
+        counts[bucket(v)].increment();
+        total.add(v);
+        max.accumulate(v);
+    }
+
+    private static int bucket(long v) {
+        if (v < LINEAR) {
+            return (int) v;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        return LINEAR + ((exponent - SUB_BITS - 1) << SUB_BITS) + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exponent = ((bucket - LINEAR) >> SUB_BITS) + SUB_BITS + 1;
+        long sub = (bucket - LINEAR) & ((1 << SUB_BITS) - 1);
+        return (((1L << SUB_BITS) + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    public long count() {
+        long n = 0;
+        for (LongAdder c : counts) {
+            n += c.sum();
+        }
+        return n;
+    }
+
+    /** Upper bound of the bucket holding the given fraction (0..1) of recorded values. */
+    public long percentile(double fraction) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /** JSON object with count, mean, p50, p99 and max. */
+    public String toJson() {
+        long n = count();
+        return "{\"count\": " + n + ", \"mean\": " + (n == 0 ? 0 : total.sum() / n) + ", \"p50\": " + percentile(0.5)
+                + ", \"p99\": " + percentile(0.99) + ", \"max\": " + max() + "}";
+    }
+}
@@ -0,0 +1,159 @@
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Coordinator membership. Lookups by id go through a concurrent map; the online
+ * members are also kept in a copy-on-write array, so fan-out walks a plain array
+ * without allocating or checking status. Membership and status changes are rare
+ * next to multicasts, so they serialize on the registry and swap in a new array,
+ * and status changes are pushed to the online index of each of the member's groups.
+ */
+public class MembershipRegistry {
+    private static final ParticipantInfo[] NONE = new ParticipantInfo[0];
+
+    private final ConcurrentHashMap<String, ParticipantInfo> members = new ConcurrentHashMap<>();
+    private volatile ParticipantInfo[] online = NONE;
+
+    public ParticipantInfo get(String id) {
+        return members.get(id);
+    }
+
+    /** Adds or replaces a member; returns the one it replaced, if any. */
+    public synchronized ParticipantInfo put(ParticipantInfo pi) {
+        ParticipantInfo previous = members.put(pi.getId(), pi);
+        if (previous != null && previous.isOnline()) {
+            removeOnline(previous);
+        }
+        if (pi.isOnline()) {
+            addOnline(pi);
+        }
+        return previous;
+    }
+
+    public synchronized ParticipantInfo remove(String id) {
+        ParticipantInfo removed = members.remove(id);
+        if (removed != null && removed.isOnline()) {
+            removeOnline(removed);
+        }
+        return removed;
+    }
+
+    public void setOnline(ParticipantInfo pi) {
+        setStatus(pi, ParticipantInfo.Status.ONLINE);
+    }
+
+    public void setOffline(ParticipantInfo pi) {
+        setStatus(pi, ParticipantInfo.Status.OFFLINE);
+    }
+
+    public synchronized void setStatus(ParticipantInfo pi, ParticipantInfo.Status status) {
+        if (pi.getStatus() == status) {
+            return;
+        }
+        boolean wasOnline = pi.isOnline();
+        pi.setStatus(status);
+        if (members.get(pi.getId()) == pi) {
+            if (wasOnline) {
+                removeOnline(pi);
+            } else if (pi.isOnline()) {
+                addOnline(pi);
+            }
+        }
+        refreshGroups(pi);
+    }
+
+    // Keep each group's online index in step with the member's status
+    private void refreshGroups(ParticipantInfo pi) {
+        for (Subscription sub : pi.getSubscriptions()) {
+            sub.getGroup().refresh(sub);
+        }
+    }
+
+    /**
+     * Takes a member offline, as {@code status}, after a delivery failure on {@code channel},
+     * unless it has already moved to a new channel (e.g. reconnected while the failing write
+     * was running). EXPIRED lets the member resume by itself once it is heard from again.
+     */
+    public synchronized boolean markUnreachable(ParticipantInfo pi, ParticipantChannel channel,
+                                                ParticipantInfo.Status status) {
+        if (pi.getChannel() != channel) {
+            return false;
+        }
+        setStatus(pi, status);
+        pi.closeChannel();
+        return true;
+    }
+
+    /**
+     * Takes an online member offline, e.g. a slow consumer; only one caller gets true,
+     * so concurrent senders that all see it over the limit demote it once.
+     */
+    public synchronized boolean takeOffline(ParticipantInfo pi) {
+        if (!pi.isOnline() || members.get(pi.getId()) != pi) {
+            return false;
+        }
+        setOffline(pi);
+        pi.closeChannel();
+        return true;
+    }
+
+    /**
+     * Takes an online member offline as EXPIRED if it has not been heard from since
+     * {@code deadline}; checked under the registry lock so a member that just came
+     * back is left alone.
+     */
+    public synchronized boolean expire(ParticipantInfo pi, long deadline) {
+        if (!pi.isOnline() || pi.getLastHeard() >= deadline || members.get(pi.getId()) != pi) {
+            return false;
+        }
+        setStatus(pi, ParticipantInfo.Status.EXPIRED);
+        pi.closeChannel();
+        return true;
+    }
+
+    /**
+     * Claims an EXPIRED member for resumption; only one caller gets true, and none
+     * while the backoff after a failed delivery is still running.
+     */
+    public synchronized boolean claimExpired(ParticipantInfo pi) {
+        if (pi.getStatus() != ParticipantInfo.Status.EXPIRED || System.currentTimeMillis() < pi.getResumeAfter()) {
+            return false;
+        }
+        setOffline(pi);
+        return true;
+    }
+
+    /** Current online members; the array is shared and must not be modified. */
+    public ParticipantInfo[] online() {
+        return online;
+    }
+
+    public Collection<ParticipantInfo> all() {
+        return members.values();
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    private void addOnline(ParticipantInfo pi) {
+        ParticipantInfo[] current = online;
+        ParticipantInfo[] next = new ParticipantInfo[current.length + 1];
+        System.arraycopy(current, 0, next, 0, current.length);
+        next[current.length] = pi;
+        online = next;
+    }
+
+    private void removeOnline(ParticipantInfo pi) {
+        ParticipantInfo[] current = online;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == pi) {
+                ParticipantInfo[] next = new ParticipantInfo[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                online = next.length == 0 ? NONE : next;
+                return;
+            }
+        }
+    }
+}
@@ -1,16 +1,23 @@
 import java.io.Serializable;
 
 public class Message implements Serializable {
+    private long sequence;                              // assigned by the Coordinator, strictly increasing
     private String senderId;
     private String message;
     private long timestamp;
+    private transient volatile byte[] frame;           // delivery encoding, shared by every recipient
 
-    public Message(String senderId, String message, long timestamp) {
+    public Message(long sequence, String senderId, String message, long timestamp) {
+        this.sequence = sequence;
         this.senderId = senderId;
         this.message = message;
         this.timestamp = timestamp;
     }
 
+    public long getSequence() {
+        return sequence;
+    }
+
     public String getSenderId() {
         return senderId;
     }
@@ -23,8 +30,17 @@ public class Message implements Serializable {
         return timestamp;
     }
 
+    public byte[] getFrame() {
+        return frame;
+    }
+
+    // Two workers may race to encode; either result is the same bytes
+    public void setFrame(byte[] frame) {
+        this.frame = frame;
+    }
+
     @Override
     public String toString() {
-        return "[" + senderId + "] " + message + " (" + timestamp + ")";
+        return "#" + sequence + " [" + senderId + "] " + message + " (" + timestamp + ")";
     }
 }
@@ -0,0 +1,83 @@
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Participant-side accumulator that coalesces multicasts into MSEND_BATCH frames.
+ * A batch is sent when it reaches the message or byte limit, or when the oldest
+ * queued message has waited for the linger time, whichever comes first.
+ */
+public class MessageBatcher implements Closeable {
+    private final CoordinatorClient client;
+    private final int maxMessages;
+    private final int maxBytes;
+    private final long lingerMs;
+    private final ScheduledExecutorService timer;
+
+    private List<byte[]> pending = new ArrayList<>();
+    private List<CompletableFuture<Long>> waiters = new ArrayList<>();
+    private int pendingBytes;
+    private ScheduledFuture<?> lingerTask;
+
+    public MessageBatcher(CoordinatorClient client, int maxMessages, int maxBytes, long lingerMs) {
+        this.client = client;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.lingerMs = lingerMs;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "batch-linger");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Queues a message; the future yields its Coordinator sequence once the batch is acked. */
+    public synchronized CompletableFuture<Long> add(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        pending.add(bytes);
+        waiters.add(future);
+        pendingBytes += bytes.length;
+        if (pending.size() >= maxMessages || pendingBytes >= maxBytes) {
+            flush();
+        } else if (lingerTask == null) {
+            lingerTask = timer.schedule(this::flush, lingerMs, TimeUnit.MILLISECONDS);
+        }
+        return future;
+    }
+
+    public synchronized void flush() {
+        if (lingerTask != null) {
+            lingerTask.cancel(false);
+            lingerTask = null;
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<CompletableFuture<Long>> batchWaiters = waiters;
+        byte[] payload = WireProtocol.batchPayload(pending);
+        pending = new ArrayList<>();
+        waiters = new ArrayList<>();
+        pendingBytes = 0;
+
+        // Sent under the lock so batches reach the Coordinator in the order they were filled
+        client.send(WireProtocol.MSEND_BATCH, payload).whenComplete((lastSequence, error) -> {
+            int count = batchWaiters.size();
+            for (int i = 0; i < count; i++) {
+                if (error != null) {
+                    batchWaiters.get(i).completeExceptionally(error);
+                } else {
+                    batchWaiters.get(i).complete(lastSequence - (count - 1 - i));   // batch sequences are consecutive
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        flush();
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,9 @@
+/**
+ * Receives a participant's multicast messages in process, once each and in
+ * sequence order per group. Calls come from the participant's receiver thread
+ * while it holds the delivery order, so a listener that does real work should
+ * hand the message off rather than block.
+ */
+public interface MessageListener {
+    void onMessage(String group, long sequence, String senderId, String message);
+}
@@ -0,0 +1,157 @@
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Single long-lived writer for a participant's message log. Callers only enqueue;
+ * a background thread stamps, batches and appends lines, flushing when the queue
+ * drains, when enough bytes are pending or when the flush interval elapses. The
+ * log optionally rolls to numbered backups once it exceeds a size limit.
+ */
+public class MessageLogWriter implements Closeable {
+    private static final int BATCH_LINES = 512;
+    private static final int FLUSH_BYTES = 64 * 1024;
+    private static final int BACKUPS = 5;
+
+    private final File file;
+    private final long maxBytes;                        // 0 disables rolling
+    private final long flushIntervalMs;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    // Only touched by the writer thread
+    private final SimpleDateFormat format = new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US);
+    private long cachedSecond = -1;
+    private String cachedStamp;
+    private Writer out;
+    private long fileBytes;
+
+    private static final class Entry {
+        final long timestamp;
+        final String text;
+
+        Entry(long timestamp, String text) {
+            this.timestamp = timestamp;
+            this.text = text;
+        }
+    }
+
+    public MessageLogWriter(String path, long maxBytes, long flushIntervalMs) {
+        this.file = new File(path);
+        this.maxBytes = maxBytes;
+        this.flushIntervalMs = flushIntervalMs;
+        this.thread = new Thread(this::run, "log-writer-" + file.getName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues a line; it is stamped with the current time, as "[date] text". Lines
+     * are dropped once the writer is closed or has failed to write the file.
+     */
+    public void log(String text) {
+        if (!closed) {
+            queue.add(new Entry(System.currentTimeMillis(), text));
+        }
+    }
+
+    private void run() {
+        List<Entry> batch = new ArrayList<>(BATCH_LINES);
+        long lastFlush = System.currentTimeMillis();
+        int unflushedBytes = 0;
+        try {
+            while (!closed || !queue.isEmpty()) {
+                Entry first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_LINES - 1);
+                    for (Entry entry : batch) {
+                        unflushedBytes += write(entry);
+                    }
+                    batch.clear();
+                }
+                long now = System.currentTimeMillis();
+                if (unflushedBytes > 0 && (queue.isEmpty() || unflushedBytes >= FLUSH_BYTES
+                        || now - lastFlush >= flushIntervalMs)) {
+                    out.flush();
+                    unflushedBytes = 0;
+                    lastFlush = now;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // Stop accepting lines rather than queue them for a writer that is gone
+            closed = true;
+            queue.clear();
+            System.out.println("Error writing message log " + file + ", logging stopped: " + e.getMessage());
+        } finally {
+            closeFile();
+        }
+    }
+
+    private int write(Entry entry) throws IOException {
+        if (out == null) {
+            openFile();
+        } else if (maxBytes > 0 && fileBytes >= maxBytes) {
+            roll();
+        }
+        String line = "[" + stamp(entry.timestamp) + "] " + entry.text + "\n";
+        out.write(line);
+        fileBytes += line.length();
+        return line.length();
+    }
+
+    // Date formatting is the expensive part of a log line; reuse it within the same second
+    private String stamp(long timestamp) {
+        long second = timestamp / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedStamp = format.format(new Date(timestamp));
+        }
+        return cachedStamp;
+    }
+
+    private void openFile() throws IOException {
+        out = new BufferedWriter(new FileWriter(file, true), FLUSH_BYTES);
+        fileBytes = file.length();
+    }
+
+    // log -> log.1 -> log.2 ... keeping BACKUPS old files
+    private void roll() throws IOException {
+        out.close();
+        new File(file.getPath() + "." + BACKUPS).delete();
+        for (int i = BACKUPS - 1; i >= 1; i--) {
+            File older = new File(file.getPath() + "." + i);
+            if (older.exists()) {
+                older.renameTo(new File(file.getPath() + "." + (i + 1)));
+            }
+        }
+        file.renameTo(new File(file.getPath() + ".1"));
+        openFile();
+    }
+
+    private void closeFile() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.out.println("Error closing message log: " + e.getMessage());
+            }
+            out = null;
+        }
+    }
+
+    /** Writes out everything already queued, then stops the writer thread. */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Retains multicast messages for the temporal persistence window.
+ * Every message gets the next 64-bit sequence number, and the ring buffer holds a
+ * contiguous run of sequences, so a participant's position is found by offset
+ * arithmetic. Expired entries are evicted from the head by timestamp. A running
+ * byte count alongside the ring gives the size of any suffix in O(1), which is how
+ * a recipient's backlog is measured.
+ */
+public class MessageStore {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private Message[] ring = new Message[INITIAL_CAPACITY];   // capacity is always a power of two
+    private long[] ends = new long[INITIAL_CAPACITY];         // totalBytes just after each message
+    private long totalBytes;                                   // approximate wire bytes ever stored
+    private int head;                                          // index of the oldest message
+    private int size;
+    private long lastSequence;                                 // 0 means nothing was ever stored
+    private long lastTimestamp;
+
+    /** Sequences and stores a message; timestamps never go backwards even if the clock does. */
+    public synchronized Message append(String senderId, String text) {
+        long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp);
+        Message msg = new Message(lastSequence + 1, senderId, text, timestamp);
+        add(msg);
+        return msg;
+    }
+
+    /** Sequences and stores a batch from one sender; the batch gets consecutive sequences. */
+    public synchronized List<Message> appendAll(String senderId, List<String> texts) {
+        List<Message> appended = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            appended.add(append(senderId, text));
+        }
+        return appended;
+    }
+
+    /** Re-inserts a message recovered from the write-ahead log, keeping its sequence and stamp. */
+    public synchronized void restore(Message msg) {
+        if (msg.getSequence() <= lastSequence) {
+            return;                                              // already present
+        }
+        if (msg.getSequence() != lastSequence + 1) {
+            clear();                                             // earlier ones expired; keep the run contiguous
+        }
+        add(msg);
+    }
+
+    /**
+     * Adds a message replicated from the group's owner. One that does not follow the
+     * last is refused, leaving the store as it is, since the messages between were lost
+     * on the way rather than expired; the owner's resync fills them in. Returns false
+     * for such a gap, and for a message that is already present.
+     */
+    public synchronized boolean appendReplica(Message msg) {
+        if (msg.getSequence() != lastSequence + 1) {
+            return false;
+        }
+        add(msg);
+        return true;
+    }
+
+    /** Makes the next append use a sequence above {@code sequence}, e.g. after recovery. */
+    public synchronized void advanceTo(long sequence) {
+        if (sequence > lastSequence) {
+            clear();
+            lastSequence = sequence;
+        }
+    }
+
+    private void add(Message msg) {
+        if (size == ring.length) {
+            grow();
+        }
+        totalBytes += weight(msg);
+        ring[(head + size) & (ring.length - 1)] = msg;
+        ends[(head + size) & (ring.length - 1)] = totalBytes;
+        size++;
+        lastSequence = msg.getSequence();
+        lastTimestamp = Math.max(lastTimestamp, msg.getTimestamp());
+    }
+
+    /** Messages after sequence {@code afterSequence} and newer than {@code horizon}, oldest first. */
+    public synchronized List<Message> since(long afterSequence, long horizon) {
+        return since(afterSequence, horizon, Integer.MAX_VALUE);
+    }
+
+    /** At most {@code limit} messages after {@code afterSequence} and newer than {@code horizon}. */
+    public synchronized List<Message> since(long afterSequence, long horizon, int limit) {
+        int from = (int) Math.max(0, Math.min(size, afterSequence - firstSequence() + 1));
+        if (from < size && at(from).getTimestamp() <= horizon) {
+            from = firstAfter(horizon);                          // not swept yet; skip the expired part
+        }
+        int to = (int) Math.min(size, (long) from + limit);
+        List<Message> result = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            result.add(at(i));
+        }
+        return result;
+    }
+
+    /** Drops every message stamped at or before {@code horizon}; returns how many were dropped. */
+    public synchronized int evictOlderThan(long horizon) {
+        int expired = firstAfter(horizon);
+        for (int i = 0; i < expired; i++) {
+            ring[head] = null;
+            head = (head + 1) & (ring.length - 1);
+        }
+        size -= expired;
+        return expired;
+    }
+
+    /** Approximate wire bytes of the retained messages after {@code afterSequence}. */
+    public synchronized long bytesAfter(long afterSequence) {
+        long first = firstSequence();
+        return bytesFrom((int) Math.max(0, Math.min(size, afterSequence - first + 1)));
+    }
+
+    /** The lowest sequence whose retained suffix fits in {@code maxBytes}. */
+    public synchronized long sequenceWithin(long maxBytes) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (bytesFrom(mid) <= maxBytes) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return firstSequence() - 1 + lo;
+    }
+
+    // Bytes of the messages from index i to the end
+    private long bytesFrom(int i) {
+        if (i >= size) {
+            return 0;
+        }
+        long start = i == 0 ? endAt(0) - weight(at(0)) : endAt(i - 1);
+        return totalBytes - start;
+    }
+
+    private long endAt(int i) {
+        return ends[(head + i) & (ring.length - 1)];
+    }
+
+    // Close to the size of the delivery frame the message becomes
+    private static long weight(Message msg) {
+        return 32 + msg.getSenderId().length() + msg.getMessage().length();
+    }
+
+    /** Sequence of the oldest retained message; lastSequence() + 1 when the store is empty. */
+    public synchronized long firstSequence() {
+        return lastSequence - size + 1;
+    }
+
+    public synchronized long lastSequence() {
+        return lastSequence;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private Message at(int i) {
+        return ring[(head + i) & (ring.length - 1)];
+    }
+
+    // Index of the first message with a timestamp strictly greater than ts
+    private int firstAfter(long ts) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (at(mid).getTimestamp() <= ts) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private void clear() {
+        for (int i = 0; i < size; i++) {
+            ring[(head + i) & (ring.length - 1)] = null;
+        }
+        head = 0;
+        size = 0;
+    }
+
+    private void grow() {
+        Message[] bigger = new Message[ring.length * 2];
+        long[] biggerEnds = new long[ring.length * 2];
+        for (int i = 0; i < size; i++) {
+            bigger[i] = at(i);
+            biggerEnds[i] = endAt(i);
+        }
+        ring = bigger;
+        ends = biggerEnds;
+        head = 0;
+    }
+}
@@ -0,0 +1,319 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Non-blocking front door for the Coordinator. One acceptor hands new connections
+ * round-robin to a fixed set of selector loops, which split the inbound bytes into
+ * newline-terminated commands and write back one response line per command.
+ * A connection whose first byte is {@link WireProtocol#MAGIC} is read as
+ * length-prefixed binary frames instead, parsed straight out of the read buffer.
+ * A response may complete later, e.g. once another node has answered for it; the
+ * loop goes on serving other connections and sends each connection's responses in
+ * command order as they become ready.
+ */
+public class NioFrontDoor {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_WAITING_RESPONSES = 1024;         // reading pauses beyond this many
+    private static final int MAX_UNSENT_BYTES = 1024 * 1024;       // or while this much output is unsent
+    private static final int MAX_COMMAND_BYTES = 4 + WireProtocol.MAX_FRAME_BYTES;   // a line or a whole frame
+
+    private final int port;
+    private final EventLoop[] loops;
+    private final Handler handler;
+    private final FrameHandler frameHandler;
+    private final AtomicInteger open = new AtomicInteger();
+    private final LongAdder accepted = new LongAdder();
+    private ServerSocketChannel server;                             // set by bind()
+
+    /** Processes one command line; the future yields the response line to send back. */
+    public interface Handler {
+        CompletableFuture<String> handle(String line);
+    }
+
+    /** Processes one binary frame body (after the length prefix); the future yields the encoded response frame. */
+    public interface FrameHandler {
+        CompletableFuture<byte[]> handle(ByteBuffer body);
+    }
+
+    public NioFrontDoor(int port, int loopThreads, Handler handler, FrameHandler frameHandler) throws IOException {
+        this.port = port;
+        this.handler = handler;
+        this.frameHandler = frameHandler;
+        this.loops = new EventLoop[loopThreads];
+        for (int i = 0; i < loopThreads; i++) {
+            loops[i] = new EventLoop(Selector.open());
+            Thread t = new Thread(loops[i], "nio-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /** Binds the listening port; connections wait in the backlog until {@link #run} accepts them. */
+    public void bind() throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        server = channel;
+    }
+
+    // Accepts connections on the calling thread until the server channel fails
+    public void run() throws IOException {
+        if (server == null) {
+            bind();
+        }
+        try (ServerSocketChannel server = this.server) {
+            int next = 0;
+            while (true) {
+                SocketChannel client = server.accept();
+                client.configureBlocking(false);
+                client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                accepted.increment();
+                open.incrementAndGet();
+                loops[next].register(client);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    public int openConnections() {
+        return open.get();
+    }
+
+    public long acceptedConnections() {
+        return accepted.sum();
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<SelectionKey> answered = new ConcurrentLinkedQueue<>();   // a late response completed
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel client) {
+            pending.add(client);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    selector.select();
+                    SocketChannel client;
+                    while ((client = pending.poll()) != null) {
+                        client.register(selector, SelectionKey.OP_READ, new Connection());
+                    }
+                    SelectionKey late;
+                    while ((late = answered.poll()) != null) {
+                        try {
+                            if (late.isValid()) {
+                                sendReady(late);
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            closeQuietly(late);
+                        } catch (RuntimeException e) {
+                            System.out.println("Error answering NIO connection, closing it: " + e);
+                            closeQuietly(late);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            if (key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            closeQuietly(key);
+                        } catch (RuntimeException e) {
+                            // A malformed command must cost only its own connection, not the loop
+                            System.out.println("Error handling NIO connection, closing it: " + e);
+                            closeQuietly(key);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error in NIO event loop: " + e.getMessage());
+                }
+            }
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection conn = (Connection) key.attachment();
+            int n = channel.read(conn.in);
+            if (n < 0) {
+                closeQuietly(key);
+                return;
+            }
+            conn.in.flip();
+            if (conn.mode == Connection.UNKNOWN && conn.in.hasRemaining()) {
+                if (conn.in.get(conn.in.position()) == WireProtocol.MAGIC) {
+                    conn.in.get();                                 // consume the negotiation byte
+                    conn.mode = Connection.BINARY;
+                } else {
+                    conn.mode = Connection.TEXT;
+                }
+            }
+            if (conn.mode == Connection.BINARY) {
+                readFrames(key, conn);
+            } else {
+                readLines(key, conn);
+            }
+            conn.in.compact();
+            if (!conn.in.hasRemaining() || conn.in.capacity() < conn.needed) {   // command longer than the buffer
+                ByteBuffer bigger = ByteBuffer.allocate(
+                        Math.min(Math.max(conn.in.capacity() * 2, conn.needed), MAX_COMMAND_BYTES));
+                conn.in.flip();
+                bigger.put(conn.in);
+                conn.in = bigger;
+            }
+            sendReady(key);
+        }
+
+        private void readLines(SelectionKey key, Connection conn) throws IOException {
+            int lineStart = conn.in.position();
+            for (int i = lineStart; i < conn.in.limit(); i++) {
+                if (conn.in.get(i) != '\n') {
+                    continue;
+                }
+                int end = i;
+                if (end > lineStart && conn.in.get(end - 1) == '\r') {
+                    end--;
+                }
+                String line = decode(conn.in, lineStart, end);
+                respond(key, conn, handler.handle(line).thenApply(r -> (r + "\n").getBytes(StandardCharsets.UTF_8)));
+                lineStart = i + 1;
+            }
+            if (conn.in.limit() - lineStart > WireProtocol.MAX_FRAME_BYTES) {
+                throw new IOException("Command line longer than " + WireProtocol.MAX_FRAME_BYTES + " bytes");
+            }
+            conn.in.position(lineStart);
+        }
+
+        private void readFrames(SelectionKey key, Connection conn) throws IOException {
+            ByteBuffer in = conn.in;
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < WireProtocol.FIXED_BYTES || length > WireProtocol.MAX_FRAME_BYTES) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                if (in.remaining() < 4 + length) {
+                    conn.needed = 4 + length;                      // buffer is grown after compact
+                    break;
+                }
+                int bodyStart = in.position() + 4;
+                ByteBuffer body = in.duplicate();
+                body.position(bodyStart).limit(bodyStart + length);
+                respond(key, conn, frameHandler.handle(body.slice()));
+                in.position(bodyStart + length);
+            }
+        }
+
+        // A response that is not ready yet holds back the ones after it, so each connection keeps command order
+        private void respond(SelectionKey key, Connection conn, CompletableFuture<byte[]> response) {
+            if (conn.waiting.isEmpty() && response.isDone()) {
+                conn.queueResponse(response.join());
+                return;
+            }
+            conn.waiting.add(response);
+            if (!response.isDone()) {
+                response.whenComplete((bytes, error) -> {
+                    answered.add(key);                             // back to the loop thread, which owns conn
+                    selector.wakeup();
+                });
+            }
+        }
+
+        // Moves the responses that are ready, in order, to the output buffer and writes what it can
+        private void sendReady(SelectionKey key) throws IOException {
+            Connection conn = (Connection) key.attachment();
+            while (!conn.waiting.isEmpty() && conn.waiting.peek().isDone()) {
+                conn.queueResponse(conn.waiting.poll().join());
+            }
+            if (conn.out.position() > 0) {
+                write(key);
+            } else {
+                key.interestOps(interest(conn, false));
+            }
+        }
+
+        private void write(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection conn = (Connection) key.attachment();
+            conn.out.flip();
+            channel.write(conn.out);
+            conn.out.compact();
+            key.interestOps(interest(conn, conn.out.position() > 0));
+        }
+
+        // Only ask for OP_WRITE while a response is still partially unsent, and stop reading
+        // from a client that has too many responses still waiting on other nodes, or that
+        // is not reading the ones already sent
+        private int interest(Connection conn, boolean unsent) {
+            int ops = conn.waiting.size() < MAX_WAITING_RESPONSES && conn.out.position() <= MAX_UNSENT_BYTES
+                    ? SelectionKey.OP_READ : 0;
+            return unsent ? ops | SelectionKey.OP_WRITE : ops;
+        }
+
+        private void closeQuietly(SelectionKey key) {
+            key.cancel();
+            if (key.channel().isOpen()) {
+                open.decrementAndGet();
+            }
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+                // Connection is already gone
+            }
+        }
+    }
+
+    private static String decode(ByteBuffer buffer, int start, int end) {
+        return new String(buffer.array(), buffer.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private static final class Connection {
+        static final int UNKNOWN = 0;
+        static final int TEXT = 1;
+        static final int BINARY = 2;
+
+        int mode = UNKNOWN;
+        int needed;                                                // size of a frame that did not fit
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        ByteBuffer out = ByteBuffer.allocate(256);
+        final ArrayDeque<CompletableFuture<byte[]>> waiting = new ArrayDeque<>();   // responses not yet sent, in order
+
+        void queueResponse(byte[] bytes) {
+            if (out.remaining() < bytes.length) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes.length));
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+            out.put(bytes);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Caps how far any one recipient may fall behind. A subscription's backlog is the
+ * approximate bytes between what its participant has acked and the end of the
+ * group's store, i.e. written-but-unconfirmed plus not-yet-written. Over the cap,
+ * outbound.policy decides:
+ *   block       - senders to the group wait, up to outbound.block.ms, for it to catch
+ *                 up; whoever is still over the cap after that is demoted. The wait
+ *                 holds the thread serving the sender, so frontdoor=nio refuses it
+ *   drop-oldest - the recipient skips ahead to the newest messages that fit
+ *   demote      - the recipient is taken offline and replays from its acked
+ *                 sequence when it reconnects
+ */
+public class OutboundLimit {
+    public enum Policy { BLOCK, DROP_OLDEST, DEMOTE }
+
+    private final long maxBytes;                        // 0 disables the limit
+    private final Policy policy;
+    private final long blockMs;
+    private final Predicate<ParticipantInfo> demote;
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder demoted = new LongAdder();
+    private final LongAdder blockedMs = new LongAdder();
+
+    public OutboundLimit(long maxBytes, Policy policy, long blockMs, Predicate<ParticipantInfo> demote) {
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.blockMs = blockMs;
+        this.demote = demote;
+    }
+
+    public static OutboundLimit fromOptions(Properties options, Predicate<ParticipantInfo> demote) {
+        String policy = options.getProperty("outbound.policy", "demote").trim();
+        return new OutboundLimit(
+                Long.parseLong(options.getProperty("outbound.max.bytes", "0").trim()),
+                Policy.valueOf(policy.toUpperCase().replace('-', '_')),
+                Long.parseLong(options.getProperty("outbound.block.ms", "1000").trim()),
+                demote);
+    }
+
+    /** True if a sender may be made to wait in {@link #awaitCapacity}. */
+    public boolean blocksSenders() {
+        return maxBytes > 0 && policy == Policy.BLOCK;
+    }
+
+    public static long queuedBytes(Subscription sub) {
+        return sub.getGroup().getMessages().bytesAfter(sub.getAckedSequence());
+    }
+
+    private boolean over(Subscription sub) {
+        return maxBytes > 0 && queuedBytes(sub) > maxBytes;
+    }
+
+    /**
+     * Applies the policy to a subscriber about to be woken for new messages; returns
+     * false if it was demoted and should not be woken.
+     */
+    public boolean admit(Subscription sub) {
+        if (!over(sub)) {
+            return true;
+        }
+        switch (policy) {
+            case DROP_OLDEST:
+                long keepAfter = sub.getGroup().getMessages().sequenceWithin(maxBytes);
+                long skipped = keepAfter - sub.getAckedSequence();
+                if (skipped > 0) {
+                    sub.skipTo(keepAfter);
+                    dropped.add(skipped);
+                }
+                return true;
+            case DEMOTE:
+                demote(sub);
+                return false;
+            default:
+                return true;                                // the sender already waited in awaitCapacity
+        }
+    }
+
+    /** Block policy: holds a sender until every online member of the group is under the cap. */
+    public void awaitCapacity(Group g) {
+        if (maxBytes <= 0 || policy != Policy.BLOCK) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        long deadline = start + blockMs;
+        try {
+            while (laggard(g) != null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    Subscription sub;
+                    while ((sub = laggard(g)) != null) {
+                        demote(sub);                        // one stuck reader must not stall the group
+                    }
+                    break;
+                }
+                g.awaitAck(remaining, () -> laggard(g) != null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            long waited = System.currentTimeMillis() - start;
+            if (waited > 0) {
+                blockedMs.add(waited);
+            }
+        }
+    }
+
+    private Subscription laggard(Group g) {
+        for (Subscription sub : g.online()) {
+            if (over(sub)) {
+                return sub;
+            }
+        }
+        return null;
+    }
+
+    // Counted only by the caller that actually took the participant offline
+    private void demote(Subscription sub) {
+        if (demote.test(sub.getParticipant())) {
+            demoted.increment();
+        }
+    }
+
+    /** One line on backlog and policy activity across the given groups. */
+    public String report(Collection<Group> groups) {
+        long queued = 0;
+        long worst = 0;
+        String worstName = "-";
+        int subscribers = 0;
+        for (Group g : groups) {
+            for (Subscription sub : g.online()) {
+                long bytes = queuedBytes(sub);
+                queued += bytes;
+                subscribers++;
+                if (bytes > worst) {
+                    worst = bytes;
+                    worstName = sub.getParticipant().getId() + "@" + g.getName();
+                }
+            }
+        }
+        return "Outbound: " + queued + " bytes queued for " + subscribers + " subscriptions, largest " + worst
+                + " (" + worstName + "); dropped " + dropped.sum() + ", demoted " + demoted.sum()
+                + ", senders blocked " + blockedMs.sum() + " ms";
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getDemoted() {
+        return demoted.sum();
+    }
+
+    public long getBlockedMs() {
+        return blockedMs.sum();
+    }
+}
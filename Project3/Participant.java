@@ -1,175 +1,354 @@
 import java.io.*;
 import java.net.*;
-import java.util.Date;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.zip.Inflater;
 
-public class Participant {
+/**
+ * A multicast participant: commands go to the Coordinator through a CoordinatorClient
+ * and messages arrive on thread-B, which logs each once, in order, and hands it to
+ * the configured listener. main() wraps it in the interactive console; applications
+ * embed it through {@link ParticipantConfig}, and many can share one JVM.
+ *
+ * The console speaks the binary {@link WireProtocol} like any embedding, not the text
+ * lines it reads from the user; the Coordinator's text protocol is left for manual
+ * clients such as nc and for scripts.
+ */
+public class Participant implements Closeable {
     private String id;
     private String coordinatorIP;
     private int coordinatorPort;
     private String logFile;
-    private int currentPort;
-    private boolean isOnline;
+    private volatile int currentPort;
+    private volatile boolean isOnline;
     private ExecutorService executorService;
     private ServerSocket threadBSocket;
+    private final Set<Socket> threadBConnections = ConcurrentHashMap.newKeySet();   // open delivery streams
+    private final ExecutorService receivers;            // one reader per delivery connection
+    private final Object deliveryLock = new Object();
+    private final Map<String, Long> lastSequences = new HashMap<>();   // per group: highest sequence logged
+    private final MessageLogWriter logWriter;          // null when messages only go to the listener
+    private final MessageListener listener;            // null for none
+    private final CoordinatorClient coordinator;
+    private final MessageBatcher batcher;
 
     public Participant(String id, String coordinatorIP, int coordinatorPort, String logFile) {
-        this.id = id;
-        this.coordinatorIP = coordinatorIP;
-        this.coordinatorPort = coordinatorPort;
-        this.logFile = logFile;
+        this(id, coordinatorIP, coordinatorPort, logFile, new Properties());
+    }
+
+    public Participant(String id, String coordinatorIP, int coordinatorPort, String logFile, Properties options) {
+        this(new ParticipantConfig(id, coordinatorIP, coordinatorPort).setLogFile(logFile).setOptions(options));
+    }
+
+    public Participant(ParticipantConfig config) {
+        this.id = config.getId();
+        this.coordinatorIP = config.getCoordinatorIP();
+        this.coordinatorPort = config.getCoordinatorPort();
+        this.logFile = config.getLogFile();
+        this.listener = config.getListener();
         this.isOnline = false;
         this.executorService = Executors.newFixedThreadPool(2);
+        this.receivers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "thread-B-receiver");
+            t.setDaemon(true);
+            return t;
+        });
+        this.logWriter = logFile == null ? null : new MessageLogWriter(logFile,
+                Long.parseLong(config.option("log.max.bytes", "0")),
+                Long.parseLong(config.option("log.flush.ms", "100")));
+        // Other cluster nodes to fail over to, as coordinator.failover=host:port,host:port
+        List<String> endpoints = new ArrayList<>();
+        endpoints.add(coordinatorIP + ":" + coordinatorPort);
+        for (String node : config.option("coordinator.failover", "").split(",")) {
+            if (!node.trim().isEmpty()) {
+                endpoints.add(node.trim());
+            }
+        }
+        this.coordinator = new CoordinatorClient(endpoints, id, Long.parseLong(config.option("heartbeat.ms", "5000")));
+        this.batcher = new MessageBatcher(coordinator,
+                Integer.parseInt(config.option("batch.max.messages", "128")),
+                Integer.parseInt(config.option("batch.max.bytes", "65536")),
+                Long.parseLong(config.option("batch.linger.ms", "5")));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public boolean isOnline() {
+        return isOnline;
     }
 
-    public void startThreadB(int port) {
+    // Port thread-B listens on, e.g. the one picked when registering with port 0
+    public int getPort() {
+        return currentPort;
+    }
+
+    // Binds before returning, so port 0 resolves to a real port the Coordinator can reach
+    public int startThreadB(int port) throws IOException {
+        //threadBSocket = new ServerSocket(port);
+        ServerSocket tmp = new ServerSocket();
+        tmp.setReuseAddress(true);
+        tmp.bind(new InetSocketAddress(port));
+        threadBSocket = tmp;
+
+        this.currentPort = tmp.getLocalPort();
+        isOnline = true;
         executorService.submit(() -> {
             try {
-                //threadBSocket = new ServerSocket(port);
-                ServerSocket tmp = new ServerSocket();
-                tmp.setReuseAddress(true);
-                tmp.bind(new InetSocketAddress(port));
-                threadBSocket = tmp;
-
-                this.currentPort = port;
-                isOnline = true;
+                // Accept only; reading happens on a receiver so one slow stream never blocks another
                 while (isOnline) {
-                    Socket clientSocket = threadBSocket.accept();
-                    handleMulticastMessage(clientSocket);
+                    Socket clientSocket = tmp.accept();
+                    threadBConnections.add(clientSocket);
+                    receivers.execute(() -> handleMulticastMessage(clientSocket));
                 }
             } catch (IOException e) {
-                if (isOnline) {
+                if (!tmp.isClosed()) {
                     System.out.println("Thread-B error: " + e.getMessage());
                 }
             }
         });
+        return currentPort;
     }
 
+    // The Coordinator keeps one connection open and streams "<group> <sequence> msend ..." frames over it
     private void handleMulticastMessage(Socket clientSocket) {
+        Inflater inflater = new Inflater();
         try (
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            BufferedWriter logWriter = new BufferedWriter(new FileWriter(logFile, true))
+            Socket s = clientSocket;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            PrintWriter ackOut = new PrintWriter(s.getOutputStream(), false)
         ) {
-            String message = in.readLine();
-            if (message != null) {
-                String timestampedMessage = "[" + new Date() + "] " + message;
-                logWriter.write(timestampedMessage + "\n");
-                logWriter.flush();
-                System.out.println("Received and logged multicast message: " + timestampedMessage);
+            Map<String, Long> unacked = new HashMap<>();
+            String frame;
+            while ((frame = DeliveryFrame.read(in, inflater)) != null) {
+                int groupEnd = frame.indexOf(' ');
+                int sequenceEnd = frame.indexOf(' ', groupEnd + 1);
+                String group = frame.substring(0, groupEnd);
+                long sequence = Long.parseLong(frame.substring(groupEnd + 1, sequenceEnd));
+                String message = frame.substring(sequenceEnd + 1);
+                unacked.put(group, sequence);
+                // Dedupe, log and notify under one lock so both follow sequence order across streams
+                synchronized (deliveryLock) {
+                    long last = lastSequences.getOrDefault(group, 0L);
+                    if (sequence > last) {              // otherwise resent after a reconnect; already seen
+                        if (last != 0 && sequence != last + 1) {
+                            System.out.println("Gap detected in " + group + ": expected message " + (last + 1)
+                                    + " but got " + sequence);
+                        }
+                        lastSequences.put(group, sequence);
+                        deliver(group, sequence, message);
+                    }
+                }
+
+                // Cumulative acks, sent once the burst already buffered has been queued for the log
+                if (in.available() == 0) {
+                    for (Map.Entry<String, Long> ack : unacked.entrySet()) {
+                        ackOut.println("ack " + ack.getKey() + " " + ack.getValue());
+                    }
+                    unacked.clear();
+                    ackOut.flush();
+                }
             }
         } catch (IOException e) {
-            System.out.println("Error handling multicast message: " + e.getMessage());
+            if (isOnline) {
+                System.out.println("Error handling multicast message: " + e.getMessage());
+            }
+        } finally {
+            inflater.end();
+            threadBConnections.remove(clientSocket);
         }
     }
 
-    public void sendMessage(String message) {
+    // message is "msend <sender> <text>", as it is written to the log
+    private void deliver(String group, long sequence, String message) {
+        boolean named = !Group.DEFAULT.equals(group);
+        if (logWriter != null) {
+            logWriter.log(named ? group + " " + message : message);
+        }
+        if (listener != null) {
+            int senderStart = message.indexOf(' ') + 1;
+            int senderEnd = message.indexOf(' ', senderStart);
+            try {
+                listener.onMessage(group, sequence, message.substring(senderStart, senderEnd),
+                        message.substring(senderEnd + 1));
+            } catch (RuntimeException e) {
+                System.out.println("Error in message listener: " + e);
+            }
+        }
+    }
+
+    private void checkOnline() {
         if (!isOnline) {
-            System.out.println("Error: You cannot send messages because you're either disconnected or deregistered.");
-            return;
+            throw new IllegalStateException("You cannot send messages because you're either disconnected or deregistered.");
         }
+    }
 
-        try (
-            Socket socket = new Socket(coordinatorIP, coordinatorPort);
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))
-        ) {
-            out.println("msend " + id + " " + message);
-            in.readLine();
-        } catch (IOException e) {
-            System.out.println("Error sending message: " + e.getMessage());
+    /** Sends a multicast and waits for the Coordinator to accept it; returns its sequence. */
+    public long sendMessage(String message) throws IOException {
+        checkOnline();
+        return coordinator.call(WireProtocol.MSEND, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Pipelines a multicast without waiting for the Coordinator; the future yields
+     * the sequence the Coordinator assigned once the message is accepted.
+     */
+    public CompletableFuture<Long> sendMessageAsync(String message) {
+        if (!isOnline) {
+            CompletableFuture<Long> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new IllegalStateException("Participant " + id + " is not online"));
+            return rejected;
+        }
+        return coordinator.send(WireProtocol.MSEND, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Queues a multicast to go out with others in one MSEND_BATCH frame, sent when the
+     * batch fills up or the linger time passes; the future yields its sequence.
+     */
+    public CompletableFuture<Long> sendMessageBatched(String message) {
+        if (!isOnline) {
+            CompletableFuture<Long> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new IllegalStateException("Participant " + id + " is not online"));
+            return rejected;
         }
+        return batcher.add(message);
     }
 
-    public void register(int port) {
+    /** Listens on {@code port} (0 for any free port) and registers it; returns the port. */
+    public int register(int port) throws IOException {
         stopThreadB();
-        startThreadB(port);
+        int listening = startThreadB(port);
+        synchronized (deliveryLock) {
+            lastSequences.clear();                      // a new registration leaves every group
+        }
 
-        try (
-            Socket socket = new Socket(coordinatorIP, coordinatorPort);
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))
-        ) {
-            out.println("register " + id + " " + InetAddress.getLocalHost().getHostAddress() + " " + port);
-            in.readLine();
+        try {
+            long cursor = coordinator.call(WireProtocol.REGISTER,
+                    WireProtocol.endpointPayload(InetAddress.getLocalHost().getHostAddress(), listening));
+            startFrom(Group.DEFAULT, cursor);
             isOnline = true;
-            System.out.println("Registered participant " + id);
+            coordinator.startHeartbeats();
+            return listening;
         } catch (IOException e) {
-            System.out.println("Error registering: " + e.getMessage());
+            stopThreadB();
+            throw e;
         }
     }
 
-    public void reconnect(int port) {
-        stopThreadB();
-        startThreadB(port);
+    public void join(String group) throws IOException {
+        synchronized (deliveryLock) {
+            lastSequences.remove(group);
+        }
+        long cursor = coordinator.call(WireProtocol.JOIN, group.getBytes(StandardCharsets.UTF_8));
+        startFrom(group, cursor);
+    }
 
-        try (
-            Socket socket = new Socket(coordinatorIP, coordinatorPort);
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))
-        ) {
-            //out.println("reconnect " + id + " " + port);
-            out.println("reconnect " + id + " " + InetAddress.getLocalHost().getHostAddress() + " " + port);
-            in.readLine();  
-            isOnline = true;
-            System.out.println("Participant " + id + " reconnected.");
-        } catch (IOException e) {
-            System.out.println("Error reconnecting: " + e.getMessage());
+    public void leave(String group) throws IOException {
+        coordinator.call(WireProtocol.LEAVE, group.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public long sendToGroup(String group, String message) throws IOException {
+        checkOnline();
+        return coordinator.call(WireProtocol.GSEND, WireProtocol.groupPayload(group, message));
+    }
+
+    // A (re)joined group delivers from the Coordinator's cursor, which may be lower than an old mark if the
+    // Coordinator restarted without its log; the mark was dropped before the call, so only messages already
+    // delivered since then can raise it
+    private void startFrom(String group, long cursor) {
+        synchronized (deliveryLock) {
+            lastSequences.merge(group, cursor, Math::max);
         }
     }
 
-    public void disconnect() {
+    /**
+     * Listens on {@code port} (0 for any free port) and resumes delivery there; returns the port.
+     * A node that does not know this participant rejects the reconnect, and the next one is tried.
+     */
+    public int reconnect(int port) throws IOException {
         stopThreadB();
+        int listening = startThreadB(port);
 
-        try (
-            Socket socket = new Socket(coordinatorIP, coordinatorPort);
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))
-        ) {
-            out.println("disconnect " + id);
-            in.readLine();
-            isOnline = false;
-            System.out.println("Participant " + id + " disconnected.");
-
-            // Log the event
-            try (BufferedWriter logWriter = new BufferedWriter(new FileWriter(logFile, true))) {
-                logWriter.write("[" + new Date() + "] disconnect " + id + "\n");
-                logWriter.flush();
+        byte[] endpoint = WireProtocol.endpointPayload(InetAddress.getLocalHost().getHostAddress(), listening);
+        IOException failure = null;
+        for (int attempt = 0; attempt < coordinator.endpointCount(); attempt++) {
+            try {
+                coordinator.call(WireProtocol.RECONNECT, endpoint);
+                isOnline = true;
+                coordinator.startHeartbeats();
+                return listening;
+            } catch (IOException e) {
+                failure = e;
+                coordinator.failover();
             }
-        } catch (IOException e) {
-            System.out.println("Error disconnecting: " + e.getMessage());
         }
+        stopThreadB();
+        throw failure;
     }
 
-    public void deregister() {
+    // Address of the Coordinator node currently serving this participant
+    public String getCoordinatorEndpoint() {
+        return coordinator.getEndpoint();
+    }
+
+    public void disconnect() throws IOException {
+        batcher.flush();                                // queued messages go out while still a member
         stopThreadB();
 
-        try (
-            Socket socket = new Socket(coordinatorIP, coordinatorPort);
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))
-        ) {
-            out.println("deregister " + id);
-            in.readLine();
-            isOnline = false;
-            System.out.println("Deregistered participant " + id);
-
-            // Log the event
-            try (BufferedWriter logWriter = new BufferedWriter(new FileWriter(logFile, true))) {
-                logWriter.write("[" + new Date() + "] deregister " + id + "\n");
-                logWriter.flush();
-            }
-        } catch (IOException e) {
-            System.out.println("Error deregistering: " + e.getMessage());
+        coordinator.call(WireProtocol.DISCONNECT, new byte[0]);
+        isOnline = false;
+        coordinator.stopHeartbeats();                   // an offline participant must not keep its lease alive
+
+        // Log the event
+        if (logWriter != null) {
+            logWriter.log("disconnect " + id);
         }
+    }
 
+    public void deregister() throws IOException {
+        batcher.flush();
+        stopThreadB();
 
-    }
+        coordinator.call(WireProtocol.DEREGISTER, new byte[0]);
+        isOnline = false;
+        coordinator.stopHeartbeats();
 
+        // Log the event
+        if (logWriter != null) {
+            logWriter.log("deregister " + id);
+        }
+    }
 
+    /**
+     * Releases thread-B, the Coordinator connection and the log. Does not deregister:
+     * the Coordinator keeps the membership, offline once delivery fails.
+     */
+    @Override
+    public void close() {
+        stopThreadB();
+        executorService.shutdownNow();
+        receivers.shutdownNow();
+        batcher.close();
+        if (logWriter != null) {
+            logWriter.close();                          // write out anything still queued
+        }
+        coordinator.close();
+    }
 
     private void stopThreadB() {
         isOnline = false;
-        if (threadBSocket != null && !threadBSocket.isClosed()) {
+        if (threadBSocket == null) {
+            return;                                     // never started, nothing to wait for
+        }
+        if (!threadBSocket.isClosed()) {
             try {
                 threadBSocket.close();
             } catch (IOException e) {
@@ -177,6 +356,14 @@ public class Participant {
             }
         }
         threadBSocket = null;
+        for (Socket connection : threadBConnections) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                System.out.println("Error closing thread-B connection: " + e.getMessage());
+            }
+        }
+        threadBConnections.clear();
         try { 
             Thread.sleep(200); 
         } catch (InterruptedException ignored) {
@@ -190,56 +377,110 @@ public class Participant {
             System.exit(1);
         }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(args[0]))) {
-            String id = reader.readLine().trim();
-            String logFile = reader.readLine().trim();
-            String[] coordParts = reader.readLine().trim().split(" ");
-            String coordinatorIP = coordParts[0];
-            int coordinatorPort = Integer.parseInt(coordParts[1]);
-
-            Participant participant = new Participant(id, coordinatorIP, coordinatorPort, logFile);
-            System.out.println("Participant " + id + " connecting to Coordinator at " + coordinatorIP + ":" + coordinatorPort);
+        ParticipantConfig config;
+        try {
+            config = ParticipantConfig.fromFile(args[0]);
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+            return;
+        }
+        config.setListener((group, sequence, sender, message) -> System.out.println(
+                "Received and logged multicast message: " + (Group.DEFAULT.equals(group) ? "" : group + " ")
+                        + "msend " + sender + " " + message));
+        String id = config.getId();
+        Participant participant = new Participant(config);
+        System.out.println("Participant " + id + " connecting to Coordinator at " + config.getCoordinatorIP() + ":"
+                + config.getCoordinatorPort());
 
+        try {
             BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
             while (true) {
-                System.out.print("Enter command (register <port>/reconnect <port>/msend/disconnect/deregister/exit): ");
+                System.out.print("Enter command (register <port>/reconnect <port>/msend/join <group>/leave <group>/"
+                        + "gsend <group>/disconnect/deregister/exit): ");
                 String input = console.readLine();
                 if (input == null || input.trim().isEmpty()) continue;
 
                 String[] parts = input.trim().split(" ");
                 String command = parts[0];
 
-                switch (command) {
-                    case "register":
-                        if (parts.length == 2) participant.register(Integer.parseInt(parts[1]));
-                        else System.out.println("Usage: register <port>");
-                        break;
-                    case "reconnect":
-                        if (parts.length == 2) participant.reconnect(Integer.parseInt(parts[1]));
-                        else System.out.println("Usage: reconnect <port>");
-                        break;
-                    case "disconnect":
-                        participant.disconnect();
-                        break;
-                    case "deregister":
-                        participant.deregister();
-                        break;
-                    case "msend":
-                        System.out.print("Enter message: ");
-                        String msg = console.readLine();
-                        participant.sendMessage(msg.trim());
-                        break;
-                    case "exit":
-                        System.out.println("Exiting.");
-                        participant.deregister(); // Ensure the participant deregisters before exiting
-                        participant.executorService.shutdownNow();
-                        return;
-                    default:
-                        System.out.println("Invalid command.");
+                try {
+                    switch (command) {
+                        case "register":
+                            if (parts.length != 2) {
+                                System.out.println("Usage: register <port>");
+                                break;
+                            }
+                            participant.register(Integer.parseInt(parts[1]));
+                            System.out.println("Registered participant " + id);
+                            break;
+                        case "reconnect":
+                            if (parts.length != 2) {
+                                System.out.println("Usage: reconnect <port>");
+                                break;
+                            }
+                            participant.reconnect(Integer.parseInt(parts[1]));
+                            System.out.println("Participant " + id + " reconnected through "
+                                    + participant.getCoordinatorEndpoint() + ".");
+                            break;
+                        case "disconnect":
+                            participant.disconnect();
+                            System.out.println("Participant " + id + " disconnected.");
+                            break;
+                        case "deregister":
+                            participant.deregister();
+                            System.out.println("Deregistered participant " + id);
+                            break;
+                        case "msend":
+                            System.out.print("Enter message: ");
+                            String msg = console.readLine();
+                            participant.sendMessage(msg.trim());
+                            break;
+                        case "join":
+                            if (parts.length != 2) {
+                                System.out.println("Usage: join <group>");
+                                break;
+                            }
+                            participant.join(parts[1]);
+                            System.out.println("Participant " + id + " joined group " + parts[1]);
+                            break;
+                        case "leave":
+                            if (parts.length != 2) {
+                                System.out.println("Usage: leave <group>");
+                                break;
+                            }
+                            participant.leave(parts[1]);
+                            System.out.println("Participant " + id + " left group " + parts[1]);
+                            break;
+                        case "gsend":
+                            if (parts.length != 2) {
+                                System.out.println("Usage: gsend <group>");
+                                break;
+                            }
+                            System.out.print("Enter message: ");
+                            String groupMsg = console.readLine();
+                            participant.sendToGroup(parts[1], groupMsg.trim());
+                            break;
+                        case "exit":
+                            System.out.println("Exiting.");
+                            try {
+                                participant.deregister(); // Ensure the participant deregisters before exiting
+                            } catch (IOException e) {
+                                System.out.println("Error: deregister failed: " + e.getMessage());
+                            }
+                            return;
+                        default:
+                            System.out.println("Invalid command.");
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error: " + command + " failed: " + e.getMessage());
+                } catch (IllegalStateException e) {
+                    System.out.println("Error: " + e.getMessage());
                 }
             }
         } catch (IOException e) {
             System.out.println("Error: " + e.getMessage());
+        } finally {
+            participant.close();
         }
     }
 }
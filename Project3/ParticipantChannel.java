@@ -0,0 +1,120 @@
+import java.io.*;
+import java.net.*;
+import java.util.List;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Long-lived delivery connection from the Coordinator to one participant's thread-B.
+ * The socket is opened on first use and kept open so fan-out does not pay a TCP
+ * handshake per message; messages go out as pre-encoded DeliveryFrame bytes, and a
+ * batch of frames is written with a single flush. The participant writes
+ * cumulative "ack <group> <sequence>" lines back on the same socket.
+ */
+public class ParticipantChannel implements Closeable {
+    private final String ip;
+    private final int port;
+    private final int connectTimeoutMs;
+    private final ObjLongConsumer<String> onAck;
+    private volatile Socket socket;
+    private OutputStream out;
+    private boolean closed;                            // by close(); a stale holder must not reconnect
+
+    public ParticipantChannel(String ip, int port, int connectTimeoutMs, ObjLongConsumer<String> onAck) {
+        this.ip = ip;
+        this.port = port;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.onAck = onAck;
+    }
+
+    /** Writes several frames back to back and flushes once; the frames are not modified. */
+    public synchronized void sendAll(List<byte[]> frames) throws IOException {
+        if (closed) {
+            throw new IOException("Channel to " + ip + ":" + port + " is closed");
+        }
+        if (socket == null || socket.isClosed()) {
+            open();
+        }
+        try {
+            for (byte[] frame : frames) {
+                out.write(frame);
+            }
+            out.flush();
+        } catch (IOException e) {
+            closeSocket();                                // the next send may reconnect
+            throw new IOException("Connection to " + ip + ":" + port + " lost", e);
+        }
+    }
+
+    private void open() throws IOException {
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(ip, port), connectTimeoutMs);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+        s.setTcpNoDelay(true);
+        s.setKeepAlive(true);
+        socket = s;
+        out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+        Thread reader = new Thread(() -> readAcks(s), "acks-" + ip + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readAcks(Socket s) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length == 3 && "ack".equals(parts[0])) {
+                    try {
+                        onAck.accept(parts[1], Long.parseLong(parts[2]));
+                    } catch (NumberFormatException e) {
+                        System.out.println("Ignoring malformed ack from " + ip + ":" + port + ": " + line);
+                    }
+                }
+            }
+        } catch (IOException ignored) {
+            // Socket closed by us or the participant; the next send reports it
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return socket != null && !socket.isClosed();
+    }
+
+    /**
+     * Closes the socket without waiting for the channel lock, so a watchdog can
+     * break a send that is stuck writing to an unresponsive peer.
+     */
+    public void abort() {
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+                // Nothing useful to do if close fails
+            }
+        }
+    }
+
+    /** Closes the channel for good; later sends fail instead of opening a new connection. */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Nothing useful to do if close fails
+            }
+        }
+        socket = null;
+        out = null;
+    }
+}
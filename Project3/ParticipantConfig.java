@@ -0,0 +1,83 @@
+import java.io.*;
+import java.util.Properties;
+
+/**
+ * Everything a Participant needs to start, for applications that embed one rather
+ * than run the console. The same settings the config file carries, plus the
+ * message listener; a null log file means messages go only to the listener.
+ */
+public class ParticipantConfig {
+    private final String id;
+    private final String coordinatorIP;
+    private final int coordinatorPort;
+    private String logFile;
+    private MessageListener listener;
+    private final Properties options = new Properties();
+
+    public ParticipantConfig(String id, String coordinatorIP, int coordinatorPort) {
+        this.id = id;
+        this.coordinatorIP = coordinatorIP;
+        this.coordinatorPort = coordinatorPort;
+    }
+
+    /**
+     * Reads a participant config file: id, log file and "host port" of the
+     * Coordinator on the first three lines, then optional key=value tuning.
+     */
+    public static ParticipantConfig fromFile(String path) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String id = reader.readLine().trim();
+            String logFile = reader.readLine().trim();
+            String[] coordParts = reader.readLine().trim().split(" ");
+            ParticipantConfig config = new ParticipantConfig(id, coordParts[0], Integer.parseInt(coordParts[1]));
+            config.setLogFile(logFile);
+            config.options.load(reader);
+            return config;
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getCoordinatorIP() {
+        return coordinatorIP;
+    }
+
+    public int getCoordinatorPort() {
+        return coordinatorPort;
+    }
+
+    public String getLogFile() {
+        return logFile;
+    }
+
+    public ParticipantConfig setLogFile(String logFile) {
+        this.logFile = logFile;
+        return this;
+    }
+
+    public MessageListener getListener() {
+        return listener;
+    }
+
+    public ParticipantConfig setListener(MessageListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    // Tuning, as in the config file, e.g. batch.linger.ms or coordinator.failover
+    public ParticipantConfig setOption(String key, String value) {
+        options.setProperty(key, value);
+        return this;
+    }
+
+    public ParticipantConfig setOptions(Properties values) {
+        options.putAll(values);
+        return this;
+    }
+
+    String option(String key, String defaultValue) {
+        return options.getProperty(key, defaultValue).trim();
+    }
+}
@@ -1,11 +1,23 @@
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
 public class ParticipantInfo {
-    private String id;
-    private String ip;
-    private int port;
-    private String status;
-    private long lastDelivered = 0; 
+    // REMOTE: connected through another cluster node; EXPIRED: offline because its lease ran out
+    // or a delivery failed, and resumed when it is heard from again (after a backoff, for the latter)
+    public enum Status { ONLINE, OFFLINE, REMOTE, EXPIRED }
+
+    private final String id;
+    private volatile String ip;
+    private volatile int port;
+    private volatile Status status;                    // changed through MembershipRegistry
+    private volatile String home = "";                 // cluster node it registered or reconnected at
+    private volatile long lastHeard = System.currentTimeMillis();   // last command, heartbeat or ack
+    private volatile int failedDeliveries;             // in a row; each one doubles the backoff
+    private volatile long resumeAfter;                 // not resumed before this, after a failed delivery
+    private ParticipantChannel channel;
+    private final ConcurrentHashMap<String, Subscription> subscriptions = new ConcurrentHashMap<>();   // by group
 
-    public ParticipantInfo(String id, String ip, int port, String status) {
+    public ParticipantInfo(String id, String ip, int port, Status status) {
         this.id = id;
         this.ip = ip;
         this.port = port;
@@ -24,23 +36,96 @@ public class ParticipantInfo {
         return port;
     }
 
-    public String getStatus() {
+    public Status getStatus() {
         return status;
     }
 
-    public void setPort(int port) {
+    public String getHome() {
+        return home;
+    }
+
+    public void setHome(String home) {
+        this.home = home;
+    }
+
+    public boolean isOnline() {
+        return status == Status.ONLINE;
+    }
+
+    public void setEndpoint(String ip, int port) {
+        this.ip = ip;
         this.port = port;
     }
 
-    public void setStatus(String status) {
+    void setStatus(Status status) {
         this.status = status;
     }
 
-    public long getLastDelivered() { 
-        return lastDelivered; 
+    public Subscription getSubscription(String group) {
+        return subscriptions.get(group);
+    }
+
+    public Collection<Subscription> getSubscriptions() {
+        return subscriptions.values();
+    }
+
+    // Maintained by Group.join and Group.leave
+    void addSubscription(Subscription sub) {
+        subscriptions.put(sub.getGroup().getName(), sub);
+    }
+
+    void removeSubscription(String group) {
+        subscriptions.remove(group);
+    }
+
+    public long getLastHeard() {
+        return lastHeard;
+    }
+
+    public void heard() {
+        lastHeard = System.currentTimeMillis();
+    }
+
+    public long getResumeAfter() {
+        return resumeAfter;
+    }
+
+    /** Holds off resuming for {@code backoffMs}, doubled for each failure since the last delivery, up to 8x. */
+    public synchronized void deliveryFailed(long backoffMs) {
+        resumeAfter = System.currentTimeMillis() + (backoffMs << Math.min(failedDeliveries, 3));
+        failedDeliveries++;
+    }
+
+    public void delivered() {
+        if (failedDeliveries != 0) {
+            failedDeliveries = 0;
+        }
+    }
+
+    // Acks name the group whose sequence they confirm
+    public void acknowledge(String group, long sequence) {
+        heard();
+        Subscription sub = subscriptions.get(group);
+        if (sub != null) {
+            sub.acknowledge(sequence);
+        }
+    }
+
+    public synchronized ParticipantChannel getChannel() {
+        return channel;
+    }
+
+    // Drop any delivery connection to the old endpoint; the next send reconnects to ip:port
+    public synchronized void openChannel(int connectTimeoutMs) {
+        closeChannel();
+        channel = new ParticipantChannel(ip, port, connectTimeoutMs, this::acknowledge);
     }
-    
-    public void setLastDelivered(long ts) { 
-        this.lastDelivered = ts; 
+
+    public synchronized void closeChannel() {
+        if (channel != null) {
+            channel.abort();                              // don't wait behind an in-flight send
+            channel.close();
+            channel = null;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,87 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One participant's membership in one group, and the delivery cursor that goes
+ * with it. Fan-out works per subscription: each has its own position in the
+ * group's message store and at most one worker draining it at a time.
+ */
+public class Subscription {
+    private final ParticipantInfo participant;
+    private final Group group;
+    private final AtomicLong sentSequence = new AtomicLong();    // last sequence written to the channel
+    private final AtomicLong ackedSequence = new AtomicLong();   // last sequence the participant confirmed
+    private final AtomicBoolean wakeup = new AtomicBoolean(false);
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private volatile boolean active = true;            // cleared when the participant leaves the group
+    volatile long loggedSequence;                      // acked sequence last written to the log as a CURSOR
+    boolean indexed;                                   // in the group's online array; guarded by the group
+
+    public Subscription(ParticipantInfo participant, Group group) {
+        this.participant = participant;
+        this.group = group;
+    }
+
+    public ParticipantInfo getParticipant() {
+        return participant;
+    }
+
+    public Group getGroup() {
+        return group;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    // Stops delivery, including any batch a worker is about to read
+    void cancel() {
+        active = false;
+    }
+
+    public long getSentSequence() {
+        return sentSequence.get();
+    }
+
+    // Moves the cursor past a batch read at 'from'; fails if a rewind or skip moved it meanwhile
+    public boolean advanceSent(long from, long sequence) {
+        return sentSequence.compareAndSet(from, sequence);
+    }
+
+    public long getAckedSequence() {
+        return ackedSequence.get();
+    }
+
+    // Acks are cumulative and may arrive out of order with a resume; never move backwards
+    public void acknowledge(long sequence) {
+        ackedSequence.accumulateAndGet(sequence, Math::max);
+        group.ackArrived();
+    }
+
+    // Gives up on everything up to sequence, as if it had been delivered and acked
+    public synchronized void skipTo(long sequence) {
+        ackedSequence.accumulateAndGet(sequence, Math::max);
+        sentSequence.accumulateAndGet(sequence, Math::max);
+    }
+
+    // Positions both cursors at the same sequence, e.g. at join or after recovery
+    public synchronized void resetCursor(long sequence) {
+        ackedSequence.set(sequence);
+        sentSequence.set(sequence);
+    }
+
+    // Resend anything written but not confirmed before the participant went away
+    public synchronized void rewindToAcked() {
+        sentSequence.set(ackedSequence.get());
+    }
+
+    // Set when messages may be waiting past sentSequence
+    public AtomicBoolean getWakeup() {
+        return wakeup;
+    }
+
+    // Ensures only one fan-out worker delivers this subscription at a time
+    public AtomicBoolean getDraining() {
+        return draining;
+    }
+}
@@ -0,0 +1,202 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Length-prefixed binary framing for Coordinator commands. A client selects it by
+ * sending {@link #MAGIC} as the first byte of a connection; anything else is read
+ * as the line-based text protocol. Participant, including its console, always uses frames.
+ *
+ * Frame layout (big-endian):
+ * [int length of the rest][byte opcode][short id length][id UTF-8][long sequence][payload]
+ */
+public final class WireProtocol {
+    public static final byte MAGIC = (byte) 0xB7;
+
+    public static final byte REGISTER = 1;      // payload: [short port][ip UTF-8]
+    public static final byte DEREGISTER = 2;
+    public static final byte DISCONNECT = 3;
+    public static final byte RECONNECT = 4;     // payload: [short port][ip UTF-8]
+    public static final byte MSEND = 5;         // payload: message UTF-8
+    public static final byte PING = 6;          // keeps an idle connection alive; acked like any command
+    public static final byte MSEND_BATCH = 7;   // payload: [int count] then count x [int length][message UTF-8]
+    public static final byte JOIN = 8;          // payload: group UTF-8
+    public static final byte LEAVE = 9;         // payload: group UTF-8
+    public static final byte GSEND = 10;        // payload: [short group length][group UTF-8][message UTF-8]
+    public static final byte REPLICATE = 11;    // between cluster nodes; payload: one write-ahead log record
+    public static final byte ACK = 16;          // sequence: assigned message sequence or join cursor, 0 if none
+    public static final byte NACK = 17;         // the command failed; payload: reason UTF-8
+
+    public static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    static final int FIXED_BYTES = 1 + 2 + 8;             // opcode, id length, sequence
+
+    private WireProtocol() {
+    }
+
+    /** One decoded frame; the payload is left as bytes for the handler to interpret. */
+    public static final class Frame {
+        public final byte opcode;
+        public final String id;
+        public final long sequence;
+        public final byte[] payload;
+
+        Frame(byte opcode, String id, long sequence, byte[] payload) {
+            this.opcode = opcode;
+            this.id = id;
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+
+        public int port() {
+            return ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+        }
+
+        public String ip() {
+            return new String(payload, 2, payload.length - 2, StandardCharsets.UTF_8);
+        }
+
+        public String text() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+
+        public String group() {
+            int length = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+            return new String(payload, 2, length, StandardCharsets.UTF_8);
+        }
+
+        public String groupText() {
+            int offset = 2 + (((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF));
+            return new String(payload, offset, payload.length - offset, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * The messages of an MSEND_BATCH payload. Its count and lengths come from the client,
+         * so they are checked against the payload and an IllegalArgumentException reports a bad one.
+         */
+        public List<String> texts() {
+            ByteBuffer buf = ByteBuffer.wrap(payload);
+            if (buf.remaining() < 4) {
+                throw new IllegalArgumentException("Bad batch: no message count");
+            }
+            int count = buf.getInt();
+            if (count < 0 || count > buf.remaining() / 4) {           // every entry needs at least its length
+                throw new IllegalArgumentException("Bad batch: count " + count + " in " + payload.length + " bytes");
+            }
+            List<String> texts = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                if (buf.remaining() < 4) {
+                    throw new IllegalArgumentException("Bad batch: truncated after " + i + " of " + count + " messages");
+                }
+                int length = buf.getInt();
+                if (length < 0 || length > buf.remaining()) {
+                    throw new IllegalArgumentException("Bad batch: message length " + length + " with "
+                            + buf.remaining() + " bytes left");
+                }
+                texts.add(new String(payload, buf.position(), length, StandardCharsets.UTF_8));
+                buf.position(buf.position() + length);
+            }
+            return texts;
+        }
+    }
+
+    public static byte[] encode(byte opcode, String id, long sequence, byte[] payload) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(4 + FIXED_BYTES + idBytes.length + payload.length);
+        buf.putInt(FIXED_BYTES + idBytes.length + payload.length);
+        buf.put(opcode);
+        buf.putShort((short) idBytes.length);
+        buf.put(idBytes);
+        buf.putLong(sequence);
+        buf.put(payload);
+        return buf.array();
+    }
+
+    public static byte[] endpointPayload(String ip, int port) {
+        byte[] ipBytes = ip.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[2 + ipBytes.length];
+        payload[0] = (byte) (port >>> 8);
+        payload[1] = (byte) port;
+        System.arraycopy(ipBytes, 0, payload, 2, ipBytes.length);
+        return payload;
+    }
+
+    public static byte[] groupPayload(String group, String message) {
+        byte[] groupBytes = group.getBytes(StandardCharsets.UTF_8);
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(2 + groupBytes.length + messageBytes.length);
+        buf.putShort((short) groupBytes.length);
+        buf.put(groupBytes);
+        buf.put(messageBytes);
+        return buf.array();
+    }
+
+    public static byte[] batchPayload(List<byte[]> messages) {
+        int size = 4;
+        for (byte[] message : messages) {
+            size += 4 + message.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(messages.size());
+        for (byte[] message : messages) {
+            buf.putInt(message.length);
+            buf.put(message);
+        }
+        return buf.array();
+    }
+
+    /** Command name for an opcode, matching the text protocol where there is one. */
+    public static String name(byte opcode) {
+        switch (opcode) {
+            case REGISTER: return "register";
+            case DEREGISTER: return "deregister";
+            case DISCONNECT: return "disconnect";
+            case RECONNECT: return "reconnect";
+            case MSEND: return "msend";
+            case PING: return "ping";
+            case MSEND_BATCH: return "mbatch";
+            case JOIN: return "join";
+            case LEAVE: return "leave";
+            case GSEND: return "gsend";
+            case REPLICATE: return "replicate";
+            default: return "unknown";
+        }
+    }
+
+    public static byte[] ack(long sequence) {
+        return encode(ACK, "", sequence, new byte[0]);
+    }
+
+    public static byte[] nack(String reason) {
+        return encode(NACK, "", 0, reason.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Reads one frame, or returns null on a clean end of stream. */
+    public static Frame read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < FIXED_BYTES || length > MAX_FRAME_BYTES) {
+            throw new IOException("Bad frame length " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decode(ByteBuffer.wrap(body));
+    }
+
+    /** Decodes a frame body (everything after the length prefix) that fills {@code body}. */
+    public static Frame decode(ByteBuffer body) {
+        byte opcode = body.get();
+        int idLength = body.getShort() & 0xFFFF;
+        String id = new String(body.array(), body.arrayOffset() + body.position(), idLength, StandardCharsets.UTF_8);
+        body.position(body.position() + idLength);
+        long sequence = body.getLong();
+        byte[] payload = new byte[body.remaining()];
+        body.get(payload);
+        return new Frame(opcode, id, sequence, payload);
+    }
+}
@@ -0,0 +1,425 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented on-disk log of Coordinator membership and message events.
+ * Each record is framed as [length][crc32][body] so a torn write at the tail is
+ * detected and ignored on replay. How often the log is forced to disk is set by
+ * the fsync policy: "always" (group commit before the ack), "interval" or "none".
+ *
+ * While the Coordinator runs, a closed segment whose messages have all left the
+ * persistence window is folded into a base segment at the head of the log, which
+ * keeps only the membership state and sequence marks that replay still needs. The
+ * log therefore grows with the window and the membership, not with history.
+ */
+public class WriteAheadLog implements Closeable {
+    public static final byte REGISTER = 1;
+    public static final byte DEREGISTER = 2;
+    public static final byte DISCONNECT = 3;
+    public static final byte RECONNECT = 4;
+    public static final byte MSEND = 5;
+    public static final byte SEQUENCE = 6;                  // high-water mark kept across compaction
+    public static final byte JOIN = 7;                      // also records a member's cursor at compaction
+    public static final byte LEAVE = 8;
+    public static final byte CURSOR = 9;                    // a member's acked sequence in a group, logged periodically
+    public static final byte EXPIRE = 10;                   // a DISCONNECT by lease expiry; resumed when heard from
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String LOCK_FILE = "LOCK";
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final String fsyncPolicy;
+    private final Object syncLock = new Object();
+    private final FileChannel lockFile;                    // holds the directory lock until close
+    private FileChannel segment;
+    private int segmentIndex;
+    private long segmentNewest;                            // newest message timestamp in the open segment
+    private final TreeMap<Integer, Long> closedSegments = new TreeMap<>();   // index -> newest message timestamp
+    private int baseIndex;                                 // segment holding folded history; 0 if none yet
+    private long written;                                  // bytes appended since open, across segments
+    private volatile long synced;
+
+    /** One logged event; fields that do not apply to the event type are left empty. */
+    public static class Record {
+        public final byte type;
+        public final String id;
+        public final String ip;
+        public final int port;
+        public final String text;
+        public final long sequence;
+        public final long timestamp;
+        public final String group;
+
+        public Record(byte type, String id, String ip, int port, String text, long sequence, long timestamp) {
+            this(type, id, ip, port, text, sequence, timestamp, Group.DEFAULT);
+        }
+
+        public Record(byte type, String id, String ip, int port, String text, long sequence, long timestamp,
+                      String group) {
+            this.type = type;
+            this.id = id;
+            this.ip = ip;
+            this.port = port;
+            this.text = text;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.group = group;
+        }
+    }
+
+    /**
+     * Opens the log in {@code dir} and locks it for this process; fails if another
+     * Coordinator holds the lock, before anything in the directory is read or changed.
+     */
+    public WriteAheadLog(Path dir, long segmentBytes, String fsyncPolicy) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        Files.createDirectories(dir);
+        lockFile = FileChannel.open(dir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockFile.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;                                    // held by this JVM
+        }
+        if (lock == null) {
+            lockFile.close();
+            throw new IOException(dir + " is in use by another Coordinator");
+        }
+    }
+
+    public String getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /** Reads every intact record from the existing segments, oldest first. */
+    public void replay(Consumer<Record> sink) throws IOException {
+        for (Path path : segments()) {
+            read(path, sink);
+        }
+    }
+
+    private static void read(Path path, Consumer<Record> sink) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 0 || length > MAX_RECORD_BYTES) {
+                    System.out.println("WAL: ignoring corrupt record in " + path.getFileName());
+                    break;
+                }
+                byte[] body = new byte[length];
+                long crc;
+                try {
+                    crc = in.readInt() & 0xFFFFFFFFL;
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    System.out.println("WAL: ignoring torn record at end of " + path.getFileName());
+                    break;
+                }
+                if (checksum(body) != crc) {
+                    System.out.println("WAL: ignoring corrupt record in " + path.getFileName());
+                    break;
+                }
+                sink.accept(decode(body));
+            }
+        }
+    }
+
+    /**
+     * Starts a fresh segment holding {@code snapshot} and deletes the segments it
+     * replaces. Called once at startup, after replay and before new appends.
+     */
+    public synchronized void compact(List<Record> snapshot) throws IOException {
+        List<Path> old = segments();
+        segmentIndex = old.isEmpty() ? 0 : indexOf(old.get(old.size() - 1));
+        openNextSegment();
+        for (Record record : snapshot) {
+            writeRecord(record);
+        }
+        segment.force(false);
+        synced = written;
+        for (Path path : old) {
+            Files.deleteIfExists(path);
+        }
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX + ".tmp")) {
+            for (Path path : leftovers) {
+                Files.deleteIfExists(path);                 // a fold interrupted before its rename
+            }
+        }
+        closedSegments.clear();
+        baseIndex = 0;
+    }
+
+    /**
+     * Folds every closed segment whose messages are all older than {@code horizon}
+     * into the base segment, oldest first. The folded base replaces the segment
+     * file atomically before the previous base is deleted; if that delete is lost
+     * to a crash, replay applies the old base twice, which ends in the same state.
+     * Runs on one maintenance thread, concurrently with appends to the open segment.
+     */
+    public void compactExpired(long horizon) throws IOException {
+        while (true) {
+            int index;
+            synchronized (this) {
+                Map.Entry<Integer, Long> oldest = closedSegments.firstEntry();
+                if (oldest == null || oldest.getValue() >= horizon) {
+                    return;
+                }
+                index = oldest.getKey();
+            }
+            List<Record> records = new ArrayList<>();
+            if (baseIndex != 0) {
+                read(segmentPath(baseIndex), records::add);
+            }
+            read(segmentPath(index), records::add);
+
+            Path tmp = dir.resolve(segmentPath(index).getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (Record record : fold(records)) {
+                    writeTo(out, record);
+                }
+                out.force(false);
+            }
+            Files.move(tmp, segmentPath(index), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (baseIndex != 0) {
+                Files.deleteIfExists(segmentPath(baseIndex));
+            }
+            baseIndex = index;
+            synchronized (this) {
+                closedSegments.remove(index);
+            }
+        }
+    }
+
+    /**
+     * The records that leave the same membership behind when replayed as
+     * {@code records} do, without messages: what a later REGISTER or a final
+     * DEREGISTER supersedes is dropped, a group's JOIN, LEAVE and CURSOR records
+     * only count from the member's last JOIN, and of the records that set state
+     * outright only the last of each kind is kept. Each group's sequence survives
+     * as one SEQUENCE record at the end.
+     */
+    static List<Record> fold(List<Record> records) {
+        Map<String, Integer> lastRegister = new HashMap<>();
+        Set<String> deregistered = new HashSet<>();
+        Map<String, Integer> lastJoin = new HashMap<>();            // by id and group
+        Set<String> left = new HashSet<>();
+        Map<String, Integer> lastOfKind = new HashMap<>();          // by id, type and group
+        Map<String, Long> sequences = new LinkedHashMap<>();        // by group
+        for (int i = 0; i < records.size(); i++) {
+            Record r = records.get(i);
+            String member = r.id + "\n" + r.group;
+            switch (r.type) {
+                case REGISTER:
+                    lastRegister.put(r.id, i);
+                    deregistered.remove(r.id);
+                    break;
+                case DEREGISTER:
+                    deregistered.add(r.id);
+                    break;
+                case JOIN:
+                    lastJoin.put(member, i);
+                    left.remove(member);
+                    break;
+                case LEAVE:
+                    left.add(member);
+                    break;
+                case MSEND:
+                case SEQUENCE:
+                    sequences.merge(r.group, r.sequence, Math::max);
+                    break;
+                default:
+                    break;
+            }
+            lastOfKind.put(r.type + "\n" + member, i);
+        }
+
+        List<Record> kept = new ArrayList<>();
+        for (int i = 0; i < records.size(); i++) {
+            Record r = records.get(i);
+            if (r.type == MSEND || r.type == SEQUENCE) {
+                continue;
+            }
+            if (deregistered.contains(r.id) || i < lastRegister.getOrDefault(r.id, -1)) {
+                continue;
+            }
+            String member = r.id + "\n" + r.group;
+            if (r.type == JOIN || r.type == LEAVE || r.type == CURSOR) {
+                if (left.contains(member) || i < lastJoin.getOrDefault(member, -1)) {
+                    continue;
+                }
+            }
+            if (r.type != REGISTER && r.type != JOIN && lastOfKind.get(r.type + "\n" + member) != i) {
+                continue;
+            }
+            kept.add(r);
+        }
+        for (Map.Entry<String, Long> sequence : sequences.entrySet()) {
+            kept.add(new Record(SEQUENCE, "", null, 0, null, sequence.getValue(), 0, sequence.getKey()));
+        }
+        return kept;
+    }
+
+    /** Appends one record and returns the log position that covers it. */
+    public synchronized long append(Record record) throws IOException {
+        if (segment == null || segment.size() >= segmentBytes) {
+            if (segment != null) {
+                segment.force(false);
+                segment.close();
+                closedSegments.put(segmentIndex, segmentNewest);
+            }
+            openNextSegment();
+        }
+        writeRecord(record);
+        return written;
+    }
+
+    /**
+     * Blocks until everything up to {@code position} is on disk. Concurrent callers
+     * queue on one lock, so the first force() also covers the records of the rest.
+     */
+    public void sync(long position) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= position) {
+                return;
+            }
+            long target;
+            FileChannel current;
+            synchronized (this) {
+                target = written;
+                current = segment;
+            }
+            if (current != null) {
+                try {
+                    current.force(false);
+                } catch (ClosedChannelException e) {
+                    // Rolled over meanwhile; the roll already forced that segment
+                }
+            }
+            synced = target;
+        }
+    }
+
+    public void syncAll() throws IOException {
+        long target;
+        synchronized (this) {
+            target = written;
+        }
+        if (target > synced) {
+            sync(target);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (segment != null) {
+            segment.force(false);
+            segment.close();
+            segment = null;
+        }
+        lockFile.close();                                   // releases the lock
+    }
+
+    private void writeRecord(Record record) throws IOException {
+        written += writeTo(segment, record);
+        if (record.type == MSEND) {
+            segmentNewest = Math.max(segmentNewest, record.timestamp);
+        }
+    }
+
+    private static int writeTo(FileChannel channel, Record record) throws IOException {
+        byte[] body = encode(record);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + body.length);
+        buf.putInt(body.length);
+        buf.putInt((int) checksum(body));
+        buf.put(body);
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        return buf.limit();
+    }
+
+    private void openNextSegment() throws IOException {
+        segmentIndex++;
+        segment = FileChannel.open(segmentPath(segmentIndex), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        segmentNewest = Long.MIN_VALUE;                    // no messages yet: expired as soon as it is closed
+    }
+
+    private Path segmentPath(int index) {
+        return dir.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                result.add(path);
+            }
+        }
+        result.sort(Comparator.comparingInt(WriteAheadLog::indexOf));
+        return result;
+    }
+
+    private static int indexOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static long checksum(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return crc.getValue();
+    }
+
+    static byte[] encode(Record record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(record.type);
+        out.writeUTF(record.id);
+        out.writeUTF(record.ip == null ? "" : record.ip);
+        out.writeInt(record.port);
+        byte[] text = (record.text == null ? "" : record.text).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(text.length);                       // payloads may exceed writeUTF's 64 KB limit
+        out.write(text);
+        out.writeLong(record.sequence);
+        out.writeLong(record.timestamp);
+        out.writeUTF(record.group);
+        return bytes.toByteArray();
+    }
+
+    static Record decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = in.readByte();
+        String id = in.readUTF();
+        String ip = in.readUTF();
+        int port = in.readInt();
+        byte[] text = new byte[in.readInt()];
+        in.readFully(text);
+        long sequence = in.readLong();
+        long timestamp = in.readLong();
+        String group = in.available() > 0 ? in.readUTF() : Group.DEFAULT;   // logs written before groups
+        return new Record(type, id, ip, port, new String(text, StandardCharsets.UTF_8), sequence, timestamp, group);
+    }
+}
@@ -0,0 +1,59 @@
+package project3;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of one command through the Coordinator's request path, text and binary,
+ * with no participants online so fan-out is out of the picture. Messages expire
+ * after a one-second persistence window, which keeps the store bounded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandBenchmark {
+    private Coordinator coordinator;
+    private byte[] msendFrame;
+    private byte[] pingFrame;
+
+    @Setup
+    public void setUp() {
+        coordinator = new Coordinator(0, 1, new Properties());
+        msendFrame = body(WireProtocol.encode(WireProtocol.MSEND, "1001", 0,
+                "hello from the benchmark".getBytes(StandardCharsets.UTF_8)));
+        pingFrame = body(WireProtocol.encode(WireProtocol.PING, "1001", 0, new byte[0]));
+    }
+
+    // The front door hands over the frame without its length prefix
+    private static byte[] body(byte[] frame) {
+        byte[] body = new byte[frame.length - 4];
+        System.arraycopy(frame, 4, body, 0, body.length);
+        return body;
+    }
+
+    @Benchmark
+    public String textMsend() {
+        return coordinator.handleLine("msend 1001 hello from the benchmark").join();
+    }
+
+    @Benchmark
+    public byte[] binaryMsend() {
+        return coordinator.handleFrame(ByteBuffer.wrap(msendFrame)).join();
+    }
+
+    @Benchmark
+    public byte[] binaryPing() {
+        return coordinator.handleFrame(ByteBuffer.wrap(pingFrame)).join();
+    }
+
+    @Benchmark
+    public WireProtocol.Frame decodeFrame() {
+        return WireProtocol.decode(ByteBuffer.wrap(msendFrame));
+    }
+}
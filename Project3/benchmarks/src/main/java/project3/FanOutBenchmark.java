@@ -0,0 +1,82 @@
+package project3;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One multicast fanned out to every online subscriber of a group, through the real
+ * FanOutEngine, cursors and shared frame encoding, into a sink that stands in for
+ * the sockets. Each operation appends a message, wakes the subscribers and waits
+ * until all of them have it, so the score is multicast-to-last-delivery time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+    @Param({"1", "16", "256"})
+    public int subscribers;
+
+    @Param({"4"})
+    public int threads;
+
+    @Param({"0", "256"})
+    public int compressAtBytes;
+
+    private Group group;
+    private FanOutEngine fanOut;
+    private final AtomicLong delivered = new AtomicLong();
+    private long expected;
+    private String text;
+
+    @Setup
+    public void setUp() {
+        group = new Group(Group.DEFAULT);
+        fanOut = new FanOutEngine(threads, 5000, 256, 8,
+                (sub, after, max) -> group.getMessages().since(after, 0, max),
+                this::send);
+        for (int i = 0; i < subscribers; i++) {
+            group.join(new ParticipantInfo("p" + i, "127.0.0.1", 0, ParticipantInfo.Status.ONLINE));
+        }
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 512) {
+            sb.append("the quick brown fox jumps over the lazy dog ");
+        }
+        text = sb.toString();
+    }
+
+    private boolean send(Subscription sub, long after, List<Message> batch) {
+        for (Message msg : batch) {
+            if (msg.getFrame() == null) {
+                msg.setFrame(DeliveryFrame.encode(group.getName(), msg, compressAtBytes));
+            }
+        }
+        long last = batch.get(batch.size() - 1).getSequence();
+        sub.advanceSent(after, last);
+        sub.acknowledge(last);
+        delivered.addAndGet(batch.size());
+        return true;
+    }
+
+    @Benchmark
+    public long multicast() {
+        group.getMessages().append("1001", text);
+        expected += subscribers;
+        for (Subscription sub : group.online()) {
+            fanOut.wake(sub);
+        }
+        while (delivered.get() < expected) {
+            Thread.onSpinWait();
+        }
+        return expected;
+    }
+
+    @TearDown(Level.Iteration)
+    public void evict() {
+        group.getMessages().evictOlderThan(Long.MAX_VALUE);
+    }
+}
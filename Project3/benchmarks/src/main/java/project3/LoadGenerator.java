@@ -0,0 +1,183 @@
+package project3;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Headless load test on loopback: starts a Coordinator in this JVM, registers N
+ * participants against it and measures
+ *   multicast  - S of them send M messages each; reports send and delivery
+ *                throughput and end-to-end latency (send to receipt) percentiles
+ *   reconnect  - every participant disconnects, M more messages are sent, then all
+ *                reconnect at once; reports reconnect latency and time to catch up
+ *
+ * The participants are real Participants embedded through ParticipantConfig, with
+ * no log file and a listener that only counts and timestamps, so the measurement
+ * is the Coordinator and the client path rather than disk.
+ *
+ * Arguments are key=value: participants, senders, messages, size, port, and any
+ * Coordinator option (e.g. frontdoor=nio fanout.threads=8), passed through.
+ */
+public class LoadGenerator {
+    private final Map<String, String> args;
+    private final String host = "127.0.0.1";
+    private final int port;
+
+    private final LatencyHistogram latencyMicros = new LatencyHistogram();
+    private final AtomicLong received = new AtomicLong();
+    private final List<Participant> participants = new ArrayList<>();
+
+    private LoadGenerator(Map<String, String> args) {
+        this.args = args;
+        this.port = intArg("port", 7990);
+    }
+
+    private int intArg(String key, int defaultValue) {
+        String value = args.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public static void main(String[] argv) throws Exception {
+        Map<String, String> args = new LinkedHashMap<>();
+        for (String arg : argv) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                System.out.println("Usage: LoadGenerator [key=value ...]");
+                System.exit(1);
+            }
+            args.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new LoadGenerator(args).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        int n = intArg("participants", 50);
+        int senders = Math.min(n, intArg("senders", 4));
+        int messages = intArg("messages", 1000);
+        int size = intArg("size", 64);
+
+        Properties options = new Properties();
+        for (Map.Entry<String, String> arg : args.entrySet()) {
+            options.setProperty(arg.getKey(), arg.getValue());
+        }
+        Coordinator coordinator = new Coordinator(port, 600, options);
+        Thread server = new Thread(coordinator::start, "coordinator");
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(500);
+
+        MessageListener listener = (group, sequence, sender, message) -> {
+            latencyMicros.record((System.nanoTime() - Long.parseLong(message.substring(0, message.indexOf(' '))))
+                    / 1000);
+            received.incrementAndGet();
+        };
+        for (int i = 0; i < n; i++) {
+            Participant p = new Participant(new ParticipantConfig("load-" + i, host, port).setListener(listener));
+            p.register(0);
+            participants.add(p);
+        }
+        System.out.println("Registered " + n + " participants on port " + port);
+
+        // multicast: every sender pipelines its messages, everyone receives all of them
+        long total = (long) senders * messages;
+        long start = System.nanoTime();
+        List<Thread> sending = new ArrayList<>();
+        for (int s = 0; s < senders; s++) {
+            Participant sender = participants.get(s);
+            Thread t = new Thread(() -> sendAll(sender::sendMessageAsync, messages, size), "sender-" + s);
+            sending.add(t);
+            t.start();
+        }
+        for (Thread t : sending) {
+            t.join();
+        }
+        long sent = System.nanoTime() - start;
+        awaitDeliveries(total * n, 120_000);
+        long done = System.nanoTime() - start;
+        System.out.printf("multicast: %d messages x %d recipients%n", total, n);
+        System.out.printf("  sent       %.0f msg/s (%d ms)%n", total * 1e9 / sent, sent / 1_000_000);
+        System.out.printf("  delivered  %.0f deliveries/s (%d ms)%n", total * n * 1e9 / done, done / 1_000_000);
+        System.out.println("  latency us " + latencyMicros.toJson());
+
+        // reconnect storm: everyone offline, backlog builds, everyone back at once
+        forAll(p -> p.disconnect(), null);
+        // offline participants cannot send, so the backlog comes from a bare client
+        CoordinatorClient outsider = new CoordinatorClient(host, port, "load-sender", 0);
+        received.set(0);
+        sendAll(text -> outsider.send(WireProtocol.MSEND, text.getBytes(StandardCharsets.UTF_8)), messages, size);
+        LatencyHistogram reconnectMicros = new LatencyHistogram();
+        start = System.nanoTime();
+        forAll(p -> p.reconnect(0), reconnectMicros);
+        awaitDeliveries((long) messages * n, 120_000);
+        done = System.nanoTime() - start;
+        System.out.printf("reconnect storm: %d participants, %d messages backlog each%n", n, messages);
+        System.out.println("  reconnect us " + reconnectMicros.toJson());
+        System.out.printf("  caught up  %d ms (%.0f deliveries/s)%n", done / 1_000_000,
+                (double) messages * n * 1e9 / done);
+        System.out.println("  coordinator " + coordinator.getMetrics().toJson());
+        outsider.close();
+        for (Participant p : participants) {
+            p.close();
+        }
+    }
+
+    private interface Step {
+        void run(Participant p) throws Exception;
+    }
+
+    // Runs a step for every participant at once, optionally timing each
+    private void forAll(Step step, LatencyHistogram micros) throws InterruptedException {
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (Participant p : participants) {
+            Thread t = new Thread(() -> {
+                try {
+                    go.await();
+                    long t0 = System.nanoTime();
+                    step.run(p);
+                    if (micros != null) {
+                        micros.record((System.nanoTime() - t0) / 1000);
+                    }
+                } catch (Exception e) {
+                    System.out.println("Error for " + p.getId() + ": " + e.getMessage());
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        go.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    // The message text carries its send time, so receivers can measure end to end
+    private static void sendAll(Function<String, CompletableFuture<Long>> send, int count,
+                                int size) {
+        char[] pad = new char[Math.max(0, size - 20)];
+        Arrays.fill(pad, 'x');
+        String padding = new String(pad);
+        CompletableFuture<Long> last = null;
+        for (int i = 0; i < count; i++) {
+            last = send.apply(System.nanoTime() + " " + padding);
+        }
+        if (last != null) {
+            last.join();
+        }
+    }
+
+    private void awaitDeliveries(long expected, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (received.get() < expected) {
+            if (System.currentTimeMillis() > deadline) {
+                System.out.println("Timed out with " + received.get() + " of " + expected + " deliveries");
+                return;
+            }
+            Thread.sleep(1);
+        }
+    }
+}
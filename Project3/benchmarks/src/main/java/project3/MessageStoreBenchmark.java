@@ -0,0 +1,62 @@
+package project3;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Append and the cursor scans fan-out and backpressure do against a full store.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageStoreBenchmark {
+    private static final int APPEND_LIMIT = 1 << 16;   // evict so append does not measure ring growth
+
+    @Param({"100000"})
+    public int retained;
+
+    @Param({"1", "256"})
+    public int batch;
+
+    private MessageStore full;
+    private MessageStore appendOnly;
+    private long middle;
+
+    @Setup
+    public void setUp() {
+        full = new MessageStore();
+        for (int i = 0; i < retained; i++) {
+            full.append("1001", "message " + i);
+        }
+        middle = full.lastSequence() / 2;
+        appendOnly = new MessageStore();
+    }
+
+    @Benchmark
+    public Message append() {
+        Message m = appendOnly.append("1001", "hello from the benchmark");
+        if (appendOnly.size() >= APPEND_LIMIT) {
+            appendOnly.evictOlderThan(Long.MAX_VALUE);
+        }
+        return m;
+    }
+
+    @Benchmark
+    public List<Message> since() {
+        return full.since(middle, 0, batch);
+    }
+
+    @Benchmark
+    public long bytesAfter() {
+        return full.bytesAfter(middle);
+    }
+
+    @Benchmark
+    public long sequenceWithin() {
+        return full.sequenceWithin(64 * 1024);
+    }
+}
@@ -0,0 +1,229 @@
+package project3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Replays a log into the state the Coordinator rebuilds from it (membership, status,
+ * per-group cursors and sequence marks) and checks that folding expired segments and
+ * the startup snapshot leave that state unchanged.
+ */
+class WriteAheadLogTest {
+    private static final long OLD = 1_000;                 // message stamps before the horizon
+    private static final long HORIZON = 5_000;
+    private static final long NEW = 10_000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void recoverCompactRecoverKeepsState() throws IOException {
+        Map<String, String> written;
+        try (WriteAheadLog wal = open()) {
+            writeHistory(wal);
+            written = recover(wal);
+            long segments = segments();
+            wal.compactExpired(HORIZON);
+            assertTrue(segments() < segments, "nothing was folded");
+            assertEquals(written, recover(wal), "folding expired segments changed the state");
+        }
+
+        // What Coordinator.recover does at startup: replay, then rewrite the log as a snapshot
+        try (WriteAheadLog wal = open()) {
+            Map<String, String> recovered = recover(wal);
+            assertEquals(written, recovered);
+            wal.compact(snapshot(recovered));
+        }
+        try (WriteAheadLog wal = open()) {
+            assertEquals(written, recover(wal), "the startup snapshot changed the state");
+            wal.append(msend("p1", Group.DEFAULT, 41, NEW));
+        }
+        try (WriteAheadLog wal = open()) {
+            Map<String, String> after = recover(wal);
+            assertEquals("41", after.get("seq " + Group.DEFAULT));
+            after.put("seq " + Group.DEFAULT, written.get("seq " + Group.DEFAULT));
+            assertEquals(written, after);
+        }
+    }
+
+    @Test
+    void foldKeepsOnlyTheLatestRegistrationAndMembership() {
+        List<WriteAheadLog.Record> records = Arrays.asList(
+                record(WriteAheadLog.REGISTER, "p1", Group.DEFAULT, 0),
+                record(WriteAheadLog.JOIN, "p1", "g1", 0),
+                msend("p1", "g1", 1, OLD),
+                record(WriteAheadLog.LEAVE, "p1", "g1", 0),
+                record(WriteAheadLog.REGISTER, "p1", Group.DEFAULT, 3),
+                record(WriteAheadLog.JOIN, "p1", "g2", 0),
+                record(WriteAheadLog.CURSOR, "p1", "g2", 2),
+                record(WriteAheadLog.CURSOR, "p1", "g2", 4),
+                record(WriteAheadLog.REGISTER, "p2", Group.DEFAULT, 0),
+                record(WriteAheadLog.DEREGISTER, "p2", Group.DEFAULT, 0));
+        List<WriteAheadLog.Record> folded = WriteAheadLog.fold(records);
+
+        assertEquals(state(records), state(folded));
+        assertTrue(folded.stream().noneMatch(r -> r.type == WriteAheadLog.MSEND));
+        assertTrue(folded.stream().noneMatch(r -> r.id.equals("p2")), "a deregistered member is dropped");
+        assertEquals(1, folded.stream().filter(r -> r.type == WriteAheadLog.REGISTER).count());
+        assertEquals(1, folded.stream().filter(r -> r.type == WriteAheadLog.CURSOR).count());
+    }
+
+    @Test
+    void secondOpenOfTheSameDirectoryFails() throws IOException {
+        try (WriteAheadLog wal = open()) {
+            assertThrows(IOException.class, this::open);
+        }
+        open().close();                                    // released on close
+    }
+
+    @Test
+    void historySpansSeveralSegments() throws IOException {
+        try (WriteAheadLog wal = open()) {
+            writeHistory(wal);
+        }
+        assertTrue(segments() > 3);
+    }
+
+    private long segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(".log")).count();
+        }
+    }
+
+    private WriteAheadLog open() throws IOException {
+        return new WriteAheadLog(dir, 512, "none");        // small segments, so the history spans many
+    }
+
+    // Membership changes spread over many segments, with old messages first and new ones last
+    private static void writeHistory(WriteAheadLog wal) throws IOException {
+        long everyone = 0;
+        long g1 = 0;
+        for (String id : Arrays.asList("p1", "p2", "p3")) {
+            wal.append(record(WriteAheadLog.REGISTER, id, Group.DEFAULT, everyone));
+        }
+        wal.append(record(WriteAheadLog.JOIN, "p1", "g1", g1));
+        wal.append(record(WriteAheadLog.JOIN, "p2", "g1", g1));
+        for (int i = 0; i < 20; i++) {
+            wal.append(msend("p1", Group.DEFAULT, ++everyone, OLD + i));
+            wal.append(msend("p2", "g1", ++g1, OLD + i));
+        }
+        wal.append(record(WriteAheadLog.CURSOR, "p1", "g1", 12));
+        wal.append(record(WriteAheadLog.LEAVE, "p2", "g1", 0));
+        wal.append(record(WriteAheadLog.DEREGISTER, "p3", Group.DEFAULT, 0));
+        wal.append(record(WriteAheadLog.DISCONNECT, "p2", Group.DEFAULT, 15));
+        wal.append(record(WriteAheadLog.REGISTER, "p3", Group.DEFAULT, everyone));
+        wal.append(record(WriteAheadLog.EXPIRE, "p1", Group.DEFAULT, 18));
+        wal.append(record(WriteAheadLog.RECONNECT, "p1", Group.DEFAULT, 0));
+        for (int i = 0; i < 20; i++) {
+            wal.append(msend("p3", Group.DEFAULT, ++everyone, OLD + 20 + i));
+        }
+        wal.append(record(WriteAheadLog.CURSOR, "p3", Group.DEFAULT, 30));
+        for (int i = 0; i < 10; i++) {
+            wal.append(msend("p3", "g1", ++g1, NEW + i));  // still in the window: these segments stay
+        }
+    }
+
+    private static Map<String, String> recover(WriteAheadLog wal) throws IOException {
+        List<WriteAheadLog.Record> records = new ArrayList<>();
+        wal.replay(records::add);
+        return state(records);
+    }
+
+    // The parts of Coordinator.apply that survive compaction, flattened for comparison
+    private static Map<String, String> state(List<WriteAheadLog.Record> records) {
+        Map<String, String> state = new TreeMap<>();
+        for (WriteAheadLog.Record r : records) {
+            String member = "member " + r.id;
+            String cursor = "cursor " + r.id + " " + r.group;
+            switch (r.type) {
+                case WriteAheadLog.REGISTER:
+                    state.keySet().removeIf(k -> k.startsWith("cursor " + r.id + " "));
+                    state.put(member, "ONLINE");
+                    state.put(cursor, Long.toString(r.sequence));
+                    break;
+                case WriteAheadLog.DEREGISTER:
+                    state.keySet().removeIf(k -> k.equals(member) || k.startsWith("cursor " + r.id + " "));
+                    break;
+                case WriteAheadLog.DISCONNECT:
+                case WriteAheadLog.EXPIRE:
+                    if (state.containsKey(member)) {
+                        state.put(member, r.type == WriteAheadLog.EXPIRE ? "EXPIRED" : "OFFLINE");
+                        state.put(cursor, Long.toString(r.sequence));
+                    }
+                    break;
+                case WriteAheadLog.RECONNECT:
+                    state.computeIfPresent(member, (k, v) -> "ONLINE");
+                    break;
+                case WriteAheadLog.JOIN:
+                    if (state.containsKey(member)) {
+                        state.put(cursor, Long.toString(r.sequence));
+                    }
+                    break;
+                case WriteAheadLog.CURSOR:
+                    state.computeIfPresent(cursor, (k, v) -> Long.toString(r.sequence));
+                    break;
+                case WriteAheadLog.LEAVE:
+                    state.remove(cursor);
+                    break;
+                case WriteAheadLog.MSEND:
+                case WriteAheadLog.SEQUENCE:
+                    state.merge("seq " + r.group, Long.toString(r.sequence),
+                            (a, b) -> Long.toString(Math.max(Long.parseLong(a), Long.parseLong(b))));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return state;
+    }
+
+    // The records Coordinator.recover writes for a recovered state, messages aside
+    private static List<WriteAheadLog.Record> snapshot(Map<String, String> state) {
+        List<WriteAheadLog.Record> snapshot = new ArrayList<>();
+        for (Map.Entry<String, String> e : state.entrySet()) {
+            String[] key = e.getKey().split(" ");
+            if (key[0].equals("seq")) {
+                snapshot.add(new WriteAheadLog.Record(WriteAheadLog.SEQUENCE, "", null, 0, null,
+                        Long.parseLong(e.getValue()), 0, key[1]));
+            }
+        }
+        for (Map.Entry<String, String> e : state.entrySet()) {
+            String[] key = e.getKey().split(" ");
+            if (!key[0].equals("member")) {
+                continue;
+            }
+            String id = key[1];
+            long everyone = Long.parseLong(state.get("cursor " + id + " " + Group.DEFAULT));
+            snapshot.add(record(WriteAheadLog.REGISTER, id, Group.DEFAULT, everyone));
+            try (Stream<Map.Entry<String, String>> cursors = state.entrySet().stream()) {
+                cursors.filter(c -> c.getKey().startsWith("cursor " + id + " ")
+                                && !c.getKey().endsWith(" " + Group.DEFAULT))
+                        .forEach(c -> snapshot.add(record(WriteAheadLog.JOIN, id, c.getKey().split(" ")[2],
+                                Long.parseLong(c.getValue()))));
+            }
+            if (e.getValue().equals("OFFLINE") || e.getValue().equals("EXPIRED")) {
+                snapshot.add(record(e.getValue().equals("EXPIRED") ? WriteAheadLog.EXPIRE : WriteAheadLog.DISCONNECT,
+                        id, Group.DEFAULT, everyone));
+            }
+        }
+        return snapshot;
+    }
+
+    private static WriteAheadLog.Record record(byte type, String id, String group, long sequence) {
+        return new WriteAheadLog.Record(type, id, "127.0.0.1", 7000, null, sequence, 0, group);
+    }
+
+    private static WriteAheadLog.Record msend(String id, String group, long sequence, long timestamp) {
+        return new WriteAheadLog.Record(WriteAheadLog.MSEND, id, null, 0, "message " + sequence, sequence,
+                timestamp, group);
+    }
+}